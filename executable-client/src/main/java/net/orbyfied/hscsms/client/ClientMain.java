@@ -4,18 +4,24 @@ import net.orbyfied.hscsms.client.app.ClientApp;
 import net.orbyfied.hscsms.client.app.ConnectScreenAC;
 import net.orbyfied.hscsms.client.applib.impl.ExitAC;
 import net.orbyfied.hscsms.common.ProtocolSpec;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundPacketIds;
 import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundPublicKey;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundSetCompression;
 import net.orbyfied.hscsms.common.protocol.PacketServerboundDisconnect;
+import net.orbyfied.hscsms.common.protocol.PacketUnboundHeartbeat;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundSessionResumed;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundSessionTicket;
 import net.orbyfied.hscsms.common.protocol.handshake.PacketServerboundClientKey;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketServerboundResumeSession;
 import net.orbyfied.hscsms.common.protocol.handshake.PacketUnboundHandshakeOk;
 import net.orbyfied.hscsms.libexec.ArgParseException;
 import net.orbyfied.hscsms.libexec.ArgParser;
 import net.orbyfied.hscsms.network.NetworkManager;
-import net.orbyfied.hscsms.network.handler.ChainAction;
+import net.orbyfied.hscsms.network.PacketIdMapping;
 import net.orbyfied.hscsms.network.handler.HandlerNode;
-import net.orbyfied.hscsms.network.handler.NodeAction;
 import net.orbyfied.hscsms.network.handler.SocketNetworkHandler;
 import net.orbyfied.hscsms.security.AsymmetricEncryptionProfile;
+import net.orbyfied.hscsms.security.SessionTickets;
 import net.orbyfied.hscsms.security.SymmetricEncryptionProfile;
 import net.orbyfied.hscsms.server.ServerClient;
 import net.orbyfied.hscsms.service.Logging;
@@ -24,7 +30,11 @@ import net.orbyfied.j8.util.logging.Logger;
 
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
+import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.util.Scanner;
 
 public class ClientMain {
@@ -55,6 +65,18 @@ public class ClientMain {
     private final SymmetricEncryptionProfile clientEncryptionProfile =
             ProtocolSpec.newSymmetricEncryptionProfile();
 
+    // the last session ticket issued by the server,
+    // its resumption secret and when it expires
+    private byte[] sessionTicket;
+    private byte[] sessionSecret;
+    private long sessionTicketExpiry;
+
+    // the nonce sent to resume the session, null if
+    // not resuming, and the public key received while
+    // resuming, for falling back to the full handshake
+    private byte[] resumeNonce;
+    private PublicKey pendingPublicKey;
+
     /**
      * The working directory.
      */
@@ -80,29 +102,83 @@ public class ClientMain {
     private void initHandshake() {
 
         HandlerNode node = networkHandler.node();
+        node.childForType(PacketClientboundPacketIds.TYPE)
+                .<PacketClientboundPacketIds>withHandler((handler, node1, packet) -> {
+                    // use the compact ids of the server
+                    networkHandler
+                            .withPacketIds(PacketIdMapping.ofRemote(networkManager, packet.getHashes()))
+                            .compactPacketIds(true);
+
+                    // return and remove this node
+                    return HandlerNode.Result.REMOVE;
+                });
+
+        node.childForType(PacketClientboundSetCompression.TYPE)
+                .<PacketClientboundSetCompression>withHandler((handler, node1, packet) -> {
+                    // compress like the server
+                    networkHandler.withCompressionThreshold(packet.getThreshold());
+
+                    // return and remove this node
+                    return HandlerNode.Result.REMOVE;
+                });
+
         node.childForType(PacketClientboundPublicKey.TYPE)
                 .<PacketClientboundPublicKey>withHandler((handler, node1, packet) -> {
-                    // set public key
-                    serverEncryptionProfile.withPublicKey(packet.getKey());
-                    networkHandler.withEncryptionProfile(serverEncryptionProfile);
-
-                    // generate private key
-                    clientEncryptionProfile.generateKeys();
-                    
-                    // send serverbound private key packet, encrypted
-                    networkHandler.sendSyncEncrypted(
-                            new PacketServerboundClientKey(clientEncryptionProfile.getSecretKey()),
-                            serverEncryptionProfile
-                    );
-
-                    // use new decryption profile
-                    networkHandler
-                            .withEncryptionProfile(clientEncryptionProfile)
-                            .autoEncrypt(true);
+                    if (resumeNonce != null) {
+                        // wait for the resumption to be answered
+                        pendingPublicKey = packet.getKey();
+                    } else {
+                        sendClientKey(packet.getKey());
+                    }
 
                     // return and remove this node
-                    return new HandlerNode.Result(ChainAction.CONTINUE)
-                            .nodeAction(NodeAction.REMOVE);
+                    return HandlerNode.Result.REMOVE;
+                });
+
+        node.childForType(PacketClientboundSessionResumed.TYPE)
+                .<PacketClientboundSessionResumed>withHandler((handler, node1, packet) -> {
+                    // only answer the resumption once, even
+                    // if the server sends it again
+                    node1.remove();
+
+                    byte[] nonce = resumeNonce;
+                    byte[] secret = sessionSecret;
+                    PublicKey publicKey = pendingPublicKey;
+                    resumeNonce      = null;
+                    sessionSecret    = null;
+                    pendingPublicKey = null;
+                    if (nonce == null)
+                        return HandlerNode.Result.HALT_REMOVE;
+
+                    if (packet.isAccepted()) {
+                        // derive the key of the resumed session
+                        try {
+                            clientEncryptionProfile.withKey("secret",
+                                    SessionTickets.deriveKey(secret, nonce, packet.getNonce()));
+                            networkHandler
+                                    .withEncryptionProfile(clientEncryptionProfile)
+                                    .autoEncrypt(true);
+                            LOGGER.ok("Resumed previous session");
+                        } catch (Exception e) {
+                            LOGGER.err("Failed to derive resumed session key");
+                            e.printStackTrace(Logging.ERR);
+                            disconnect();
+                        }
+                    } else if (publicKey != null) {
+                        // fall back to the full handshake
+                        sendClientKey(publicKey);
+                    }
+
+                    return HandlerNode.Result.HALT_REMOVE;
+                });
+
+        node.childForType(PacketClientboundSessionTicket.TYPE)
+                .<PacketClientboundSessionTicket>withHandler((handler, node1, packet) -> {
+                    // keep it for the next reconnect
+                    sessionTicket       = packet.getTicket();
+                    sessionSecret       = packet.getSecret();
+                    sessionTicketExpiry = System.currentTimeMillis() + packet.getLifetime();
+                    return HandlerNode.Result.HALT;
                 });
 
         node.childForType(PacketUnboundHandshakeOk.TYPE)
@@ -110,14 +186,58 @@ public class ClientMain {
                     // modify message
                     String message = packet.message + "-modified";
 
-                    // send new packet
-                    networkHandler.sendSync(new PacketUnboundHandshakeOk(message));
+                    // respond with new packet
+                    networkHandler.respond(packet, new PacketUnboundHandshakeOk(message));
 
                     // return and remove this node
-                    return new HandlerNode.Result(ChainAction.CONTINUE)
-                            .nodeAction(NodeAction.REMOVE);
+                    return HandlerNode.Result.REMOVE;
                 });
 
+        node.childForType(PacketUnboundHeartbeat.TYPE)
+                .<PacketUnboundHeartbeat>withHandler((handler, node1, packet) -> {
+                    // echo it so the server does
+                    // not time us out
+                    networkHandler.sendAsync(new PacketUnboundHeartbeat(packet.getTime()));
+                    return HandlerNode.Result.HALT;
+                });
+
+    }
+
+    // sends a new secret key encrypted with
+    // the public key of the server
+    private void sendClientKey(PublicKey key) {
+        // set public key
+        serverEncryptionProfile.withPublicKey(key);
+        networkHandler.withEncryptionProfile(serverEncryptionProfile);
+
+        // generate private key
+        clientEncryptionProfile.generateKeys();
+
+        // send serverbound private key packet, encrypted
+        networkHandler.sendSyncEncrypted(
+                new PacketServerboundClientKey(clientEncryptionProfile.getSecretKey()),
+                serverEncryptionProfile
+        );
+
+        // use new decryption profile
+        networkHandler
+                .withEncryptionProfile(clientEncryptionProfile)
+                .autoEncrypt(true);
+    }
+
+    // tries to resume the previous session,
+    // tickets are only used once
+    private void resumeSession() {
+        byte[] ticket    = sessionTicket;
+        sessionTicket    = null;
+        resumeNonce      = null;
+        pendingPublicKey = null;
+        if (ticket == null || System.currentTimeMillis() >= sessionTicketExpiry)
+            return;
+
+        resumeNonce = new byte[SessionTickets.NONCE_LENGTH];
+        new SecureRandom().nextBytes(resumeNonce);
+        networkHandler.sendSync(new PacketServerboundResumeSession(ticket, resumeNonce));
     }
 
     public void reconnect(Socket socket) {
@@ -128,11 +248,39 @@ public class ClientMain {
         // prepare handshake
         initHandshake();
 
-        // connect
+        // connect, skipping the handshake if possible
         networkHandler.connect(socket);
+        resumeSession();
+        networkHandler.start();
+    }
+
+    public void reconnect(SocketChannel channel) {
+        LOGGER.info("Reconnecting to [" + channel + "]");
+        // disconnect from current server
+        disconnect();
+
+        // prepare handshake
+        initHandshake();
+
+        // connect, skipping the handshake if possible
+        networkHandler.connect(channel);
+        resumeSession();
         networkHandler.start();
     }
 
+    /**
+     * Connects through the unix domain socket of a
+     * server on the same host, skipping TCP.
+     * @param address The address of the socket file.
+     */
+    public void reconnect(UnixDomainSocketAddress address) {
+        try {
+            reconnect(SocketChannel.open(address));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     public void reconnect(InetSocketAddress address) {
         try {
             Socket socket = new Socket();
@@ -198,20 +346,24 @@ public class ClientMain {
             addrln = scanner.nextLine();
         }
 
-        String[] addr = addrln.split(":");
-        String host = addr[0];
-        if (host.equals("localhost") || host.isBlank())
-            host = "0.0.0.0";
-        int port = 42069;
-        if (addr.length > 1)
-            port = Integer.parseInt(addr[1]);
-
-        // connect to server
-        reconnect(new InetSocketAddress(host, port));
+        if (addrln.startsWith("unix:")) {
+            // connect to server on this host
+            reconnect(UnixDomainSocketAddress.of(addrln.substring("unix:".length())));
+        } else {
+            String[] addr = addrln.split(":");
+            String host = addr[0];
+            if (host.equals("localhost") || host.isBlank())
+                host = "0.0.0.0";
+            int port = 42069;
+            if (addr.length > 1)
+                port = Integer.parseInt(addr[1]);
+
+            // connect to server
+            reconnect(new InetSocketAddress(host, port));
+        }
 
-        // while socket is open
-        Socket socket = networkHandler.getSocket();
-        while (!socket.isClosed()) {
+        // while connection is open
+        while (networkHandler.isOpen()) {
             String s = scanner.nextLine();
             if (s.startsWith("/")) {
                 String cmd = s.substring(1);
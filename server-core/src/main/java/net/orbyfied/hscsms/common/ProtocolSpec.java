@@ -2,13 +2,24 @@ package net.orbyfied.hscsms.common;
 
 import net.orbyfied.hscsms.common.protocol.PacketClientboundDisconnect;
 import net.orbyfied.hscsms.common.protocol.PacketServerboundDisconnect;
+import net.orbyfied.hscsms.common.protocol.PacketUnboundHeartbeat;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundPacketIds;
 import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundPublicKey;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundSessionResumed;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundSessionTicket;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundSetCompression;
 import net.orbyfied.hscsms.common.protocol.handshake.PacketServerboundClientKey;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketServerboundResumeSession;
 import net.orbyfied.hscsms.common.protocol.handshake.PacketUnboundHandshakeOk;
 import net.orbyfied.hscsms.network.NetworkManager;
+import net.orbyfied.hscsms.network.buffer.PacketBuffer;
+import net.orbyfied.hscsms.network.codec.TypeCodec;
 import net.orbyfied.hscsms.security.AsymmetricEncryptionProfile;
 import net.orbyfied.hscsms.security.SymmetricEncryptionProfile;
 
+import javax.crypto.SecretKey;
+import java.security.PublicKey;
+
 public class ProtocolSpec {
 
     public static void loadProtocol(NetworkManager manager) {
@@ -18,13 +29,21 @@ public class ProtocolSpec {
          */
 
         // handshake
+        manager.compilePacketClass(PacketClientboundPacketIds.class);
+        manager.compilePacketClass(PacketClientboundSetCompression.class);
         manager.compilePacketClass(PacketClientboundPublicKey.class);
         manager.compilePacketClass(PacketServerboundClientKey.class);
         manager.compilePacketClass(PacketUnboundHandshakeOk.class);
 
+        // session resumption
+        manager.compilePacketClass(PacketServerboundResumeSession.class);
+        manager.compilePacketClass(PacketClientboundSessionResumed.class);
+        manager.compilePacketClass(PacketClientboundSessionTicket.class);
+
         // misc
         manager.compilePacketClass(PacketServerboundDisconnect.class);
         manager.compilePacketClass(PacketClientboundDisconnect.class);
+        manager.compilePacketClass(PacketUnboundHeartbeat.class);
 
     }
 
@@ -44,4 +63,36 @@ public class ProtocolSpec {
     public static final SymmetricEncryptionProfile  EP_SYMMETRIC  = newSymmetricEncryptionProfile();
     public static final AsymmetricEncryptionProfile EP_ASYMMETRIC = newAsymmetricEncryptionProfile();
 
+    /* ------------------- */
+
+    /**
+     * Codec for public keys, as base 64 strings.
+     */
+    public static class PublicKeyCodec implements TypeCodec<PublicKey> {
+        @Override
+        public void write(PacketBuffer buf, PublicKey value) {
+            buf.writeString(EP_ASYMMETRIC.encodeKeyToBase64(value));
+        }
+
+        @Override
+        public PublicKey read(PacketBuffer buf, int maxLength) throws Throwable {
+            return EP_ASYMMETRIC.decodeKeyFromBase64(PublicKey.class, buf.readString(maxLength));
+        }
+    }
+
+    /**
+     * Codec for secret keys, as base 64 strings.
+     */
+    public static class SecretKeyCodec implements TypeCodec<SecretKey> {
+        @Override
+        public void write(PacketBuffer buf, SecretKey value) {
+            buf.writeString(EP_SYMMETRIC.encodeKeyToBase64(value));
+        }
+
+        @Override
+        public SecretKey read(PacketBuffer buf, int maxLength) throws Throwable {
+            return EP_SYMMETRIC.decodeKeyFromBase64(SecretKey.class, buf.readString(maxLength));
+        }
+    }
+
 }
@@ -5,6 +5,10 @@ public enum DisconnectReason {
     DESTROY,
     KICK,
     DISCONNECT,
+    SLOW_CONSUMER,
+    TIMEOUT,
+    RATE_LIMITED,
+    OVERLOADED,
 
     CLOSE
 
@@ -1,28 +1,24 @@
 package net.orbyfied.hscsms.common.protocol;
 
 import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketPriority;
 import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
 
 public class PacketClientboundDisconnect extends Packet {
 
-    public static final PacketType<PacketClientboundDisconnect> TYPE
-            = new PacketType<>(PacketClientboundDisconnect.class,
-                "hscsms/core/clientbound/disconnect")
-            .serializer((type, packet, stream) -> {
-                // write enum reason
-                stream.writeInt(packet.reason.ordinal());
-            })
-            .deserializer((type, stream) -> {
-                // read enum reason
-                DisconnectReason reason =
-                        DisconnectReason.values()[stream.readInt()];
-
-                // construct packet
-                return new PacketClientboundDisconnect(reason);
-            });
+    public static final PacketType<PacketClientboundDisconnect> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketClientboundDisconnect.class, "hscsms/core/clientbound/disconnect"))
+            .priority(PacketPriority.CONTROL);
 
+    @PacketField(0)
     private DisconnectReason reason;
 
+    private PacketClientboundDisconnect() {
+        super(TYPE);
+    }
+
     public PacketClientboundDisconnect(DisconnectReason reason) {
         super(TYPE);
         this.reason = reason;
@@ -1,19 +1,15 @@
 package net.orbyfied.hscsms.common.protocol;
 
 import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketPriority;
 import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
 
 public class PacketServerboundDisconnect extends Packet {
 
-    public static final PacketType<PacketServerboundDisconnect> TYPE
-            = new PacketType<>(PacketServerboundDisconnect.class,
-            "hscsms/core/serverbound/disconnect")
-            .serializer((type, packet, stream) -> {
-
-            })
-            .deserializer((type, stream) -> {
-                return new PacketServerboundDisconnect();
-            });
+    public static final PacketType<PacketServerboundDisconnect> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketServerboundDisconnect.class, "hscsms/core/serverbound/disconnect"))
+            .priority(PacketPriority.CONTROL);
 
     public PacketServerboundDisconnect() {
         super(TYPE);
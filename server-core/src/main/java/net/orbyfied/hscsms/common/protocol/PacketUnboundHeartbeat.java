@@ -0,0 +1,39 @@
+package net.orbyfied.hscsms.common.protocol;
+
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketPriority;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
+
+/**
+ * Sent by the server when it did not send anything
+ * for a while and echoed back by the client, so both
+ * sides keep receiving something from a live peer.
+ */
+public class PacketUnboundHeartbeat extends Packet {
+
+    public static final PacketType<PacketUnboundHeartbeat> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketUnboundHeartbeat.class, "hscsms/core/unbound/heartbeat"))
+            .priority(PacketPriority.CONTROL)
+            .droppable();
+
+    // the time the heartbeat was sent at,
+    // in milliseconds of the sender
+    @PacketField(0)
+    long time;
+
+    private PacketUnboundHeartbeat() {
+        super(TYPE);
+    }
+
+    public PacketUnboundHeartbeat(long time) {
+        super(TYPE);
+        this.time = time;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+}
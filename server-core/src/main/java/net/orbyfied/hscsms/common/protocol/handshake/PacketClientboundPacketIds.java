@@ -0,0 +1,31 @@
+package net.orbyfied.hscsms.common.protocol.handshake;
+
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketIdMapping;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
+
+public class PacketClientboundPacketIds extends Packet {
+
+    public static final PacketType<PacketClientboundPacketIds> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketClientboundPacketIds.class, "hscsms/handshake/clientbound/packetids"));
+
+    // the identifier hashes by id
+    @PacketField(value = 0, maxLength = PacketIdMapping.MAX_COMPACT_ID + 1)
+    int[] hashes;
+
+    private PacketClientboundPacketIds() {
+        super(TYPE);
+    }
+
+    public PacketClientboundPacketIds(int[] hashes) {
+        super(TYPE);
+        this.hashes = hashes;
+    }
+
+    public int[] getHashes() {
+        return hashes;
+    }
+
+}
@@ -1,31 +1,25 @@
 package net.orbyfied.hscsms.common.protocol.handshake;
 
+import net.orbyfied.hscsms.common.ProtocolSpec;
 import net.orbyfied.hscsms.network.Packet;
 import net.orbyfied.hscsms.network.PacketType;
-
-import static net.orbyfied.hscsms.common.ProtocolSpec.EP_ASYMMETRIC;
-import static net.orbyfied.hscsms.common.ProtocolSpec.EP_SYMMETRIC;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
 
 import java.security.PublicKey;
 
 public class PacketClientboundPublicKey extends Packet {
 
-    public static final PacketType<PacketClientboundPublicKey> TYPE =
-            new PacketType<>(PacketClientboundPublicKey.class, "hscsms/handshake/clientbound/pubkey")
-            .serializer((type, packet, stream) -> {
-                // encode key and write
-                String key = EP_ASYMMETRIC.encodeKeyToBase64(packet.key);
-                stream.writeUTF(key);
-            })
-            .deserializer((type, stream) -> {
-                // read and decode key
-                String keyStr = stream.readUTF();
-                PublicKey key = EP_ASYMMETRIC.decodeKeyFromBase64(PublicKey.class, keyStr);
-                return new PacketClientboundPublicKey(key);
-            });
+    public static final PacketType<PacketClientboundPublicKey> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketClientboundPublicKey.class, "hscsms/handshake/clientbound/pubkey"));
 
+    @PacketField(value = 0, maxLength = 8192, codec = ProtocolSpec.PublicKeyCodec.class)
     PublicKey key;
 
+    private PacketClientboundPublicKey() {
+        super(TYPE);
+    }
+
     public PacketClientboundPublicKey(PublicKey key) {
         super(TYPE);
         this.key = key;
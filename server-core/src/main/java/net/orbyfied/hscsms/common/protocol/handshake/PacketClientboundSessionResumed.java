@@ -0,0 +1,45 @@
+package net.orbyfied.hscsms.common.protocol.handshake;
+
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
+
+/**
+ * Answers a session resumption. If accepted both
+ * sides encrypt with the key derived from the nonces
+ * from then on, otherwise the client continues with
+ * the RSA handshake.
+ */
+public class PacketClientboundSessionResumed extends Packet {
+
+    public static final PacketType<PacketClientboundSessionResumed> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketClientboundSessionResumed.class, "hscsms/handshake/clientbound/sessionresumed"));
+
+    // if the ticket was accepted
+    @PacketField(0)
+    boolean accepted;
+
+    // the nonce of the server for the new key
+    @PacketField(value = 1, maxLength = 64)
+    byte[] nonce;
+
+    private PacketClientboundSessionResumed() {
+        super(TYPE);
+    }
+
+    public PacketClientboundSessionResumed(boolean accepted, byte[] nonce) {
+        super(TYPE);
+        this.accepted = accepted;
+        this.nonce    = nonce;
+    }
+
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    public byte[] getNonce() {
+        return nonce;
+    }
+
+}
@@ -0,0 +1,52 @@
+package net.orbyfied.hscsms.common.protocol.handshake;
+
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
+
+/**
+ * Issues a session ticket to the client, sent
+ * encrypted once the session is established.
+ */
+public class PacketClientboundSessionTicket extends Packet {
+
+    public static final PacketType<PacketClientboundSessionTicket> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketClientboundSessionTicket.class, "hscsms/handshake/clientbound/sessionticket"));
+
+    // the ticket to send back when resuming
+    @PacketField(value = 0, maxLength = 256)
+    byte[] ticket;
+
+    // the resumption secret in the ticket
+    @PacketField(value = 1, maxLength = 256)
+    byte[] secret;
+
+    // the milliseconds the ticket is valid for
+    @PacketField(2)
+    long lifetime;
+
+    private PacketClientboundSessionTicket() {
+        super(TYPE);
+    }
+
+    public PacketClientboundSessionTicket(byte[] ticket, byte[] secret, long lifetime) {
+        super(TYPE);
+        this.ticket   = ticket;
+        this.secret   = secret;
+        this.lifetime = lifetime;
+    }
+
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    public byte[] getSecret() {
+        return secret;
+    }
+
+    public long getLifetime() {
+        return lifetime;
+    }
+
+}
@@ -0,0 +1,30 @@
+package net.orbyfied.hscsms.common.protocol.handshake;
+
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
+
+public class PacketClientboundSetCompression extends Packet {
+
+    public static final PacketType<PacketClientboundSetCompression> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketClientboundSetCompression.class, "hscsms/handshake/clientbound/setcompression"));
+
+    // the minimum payload size to compress
+    @PacketField(0)
+    int threshold;
+
+    private PacketClientboundSetCompression() {
+        super(TYPE);
+    }
+
+    public PacketClientboundSetCompression(int threshold) {
+        super(TYPE);
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+}
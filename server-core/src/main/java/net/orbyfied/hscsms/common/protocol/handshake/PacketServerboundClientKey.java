@@ -1,31 +1,25 @@
 package net.orbyfied.hscsms.common.protocol.handshake;
 
+import net.orbyfied.hscsms.common.ProtocolSpec;
 import net.orbyfied.hscsms.network.Packet;
 import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
 
 import javax.crypto.SecretKey;
 
-import static net.orbyfied.hscsms.common.ProtocolSpec.EP_ASYMMETRIC;
-import static net.orbyfied.hscsms.common.ProtocolSpec.EP_SYMMETRIC;
-
 public class PacketServerboundClientKey extends Packet {
 
-    public static final PacketType<PacketServerboundClientKey> TYPE =
-            new PacketType<>(PacketServerboundClientKey.class, "hscsms/handshake/serverbound/clientkey")
-                    .serializer((type, packet, stream) -> {
-                        // encode key and write
-                        String key = EP_SYMMETRIC.encodeKeyToBase64(packet.getKey());
-                        stream.writeUTF(key);
-                    })
-                    .deserializer((type, stream) -> {
-                        // read and decode key
-                        String keyStr = stream.readUTF();
-                        SecretKey key = EP_SYMMETRIC.decodeKeyFromBase64(SecretKey.class, keyStr);
-                        return new PacketServerboundClientKey(key);
-                    });
+    public static final PacketType<PacketServerboundClientKey> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketServerboundClientKey.class, "hscsms/handshake/serverbound/clientkey"));
 
+    @PacketField(value = 0, maxLength = 4096, codec = ProtocolSpec.SecretKeyCodec.class)
     SecretKey key;
 
+    private PacketServerboundClientKey() {
+        super(TYPE);
+    }
+
     public PacketServerboundClientKey(SecretKey key) {
         super(TYPE);
         this.key = key;
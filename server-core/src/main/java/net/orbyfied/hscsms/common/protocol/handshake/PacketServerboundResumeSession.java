@@ -0,0 +1,44 @@
+package net.orbyfied.hscsms.common.protocol.handshake;
+
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
+
+/**
+ * Sent by a returning client right after connecting,
+ * to resume its previous session instead of going
+ * through the RSA handshake.
+ */
+public class PacketServerboundResumeSession extends Packet {
+
+    public static final PacketType<PacketServerboundResumeSession> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketServerboundResumeSession.class, "hscsms/handshake/serverbound/resumesession"));
+
+    // the ticket of the previous session
+    @PacketField(value = 0, maxLength = 256)
+    byte[] ticket;
+
+    // the nonce of the client for the new key
+    @PacketField(value = 1, maxLength = 64)
+    byte[] nonce;
+
+    private PacketServerboundResumeSession() {
+        super(TYPE);
+    }
+
+    public PacketServerboundResumeSession(byte[] ticket, byte[] nonce) {
+        super(TYPE);
+        this.ticket = ticket;
+        this.nonce  = nonce;
+    }
+
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    public byte[] getNonce() {
+        return nonce;
+    }
+
+}
@@ -2,20 +2,22 @@ package net.orbyfied.hscsms.common.protocol.handshake;
 
 import net.orbyfied.hscsms.network.Packet;
 import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
 
 public class PacketUnboundHandshakeOk extends Packet {
 
-    public static final PacketType<PacketUnboundHandshakeOk> TYPE =
-            new PacketType<>(PacketUnboundHandshakeOk.class, "hscsms/handshake/unbound/ok")
-            .serializer((type, packet, stream) -> {
-                stream.writeUTF(packet.message);
-            })
-            .deserializer((type, stream) -> {
-                return new PacketUnboundHandshakeOk(stream.readUTF());
-            });
+    public static final PacketType<PacketUnboundHandshakeOk> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketUnboundHandshakeOk.class, "hscsms/handshake/unbound/ok"));
 
+    @PacketField(0)
     public final String message;
 
+    private PacketUnboundHandshakeOk() {
+        super(TYPE);
+        this.message = null;
+    }
+
     public PacketUnboundHandshakeOk(String message) {
         super(TYPE);
         this.message = message;
@@ -2,26 +2,29 @@ package net.orbyfied.hscsms.common.protocol.login;
 
 import net.orbyfied.hscsms.network.Packet;
 import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+import net.orbyfied.hscsms.network.codec.PacketField;
 
 public class PacketServerboundCreateUser extends Packet {
 
-    public static final PacketType<PacketServerboundCreateUser> TYPE =
-            new PacketType<>(PacketServerboundCreateUser.class, "hscsms/login/serverbound/createuser")
-            .serializer((type, packet, stream) -> {
-                stream.writeUTF(packet.username);
-                stream.writeUTF(packet.password);
-            })
-            .deserializer((type, stream) -> {
-                String username = stream.readUTF();
-                String password = stream.readUTF();
-                return new PacketServerboundCreateUser(username, password);
-            });
+    // the maximum encoded lengths
+    public static final int MAX_NAME_LENGTH     = 256;
+    public static final int MAX_PASSWORD_LENGTH = 1024;
+
+    public static final PacketType<PacketServerboundCreateUser> TYPE = PacketCodec.generate(
+            new PacketType<>(PacketServerboundCreateUser.class, "hscsms/login/serverbound/createuser"));
 
     /////////////////////////////////////////////////
 
+    @PacketField(value = 0, maxLength = MAX_NAME_LENGTH)
     private String username;
+    @PacketField(value = 1, maxLength = MAX_PASSWORD_LENGTH)
     private String password;
 
+    private PacketServerboundCreateUser() {
+        super(TYPE);
+    }
+
     public PacketServerboundCreateUser(String username, String password) {
         super(TYPE);
         this.username = username;
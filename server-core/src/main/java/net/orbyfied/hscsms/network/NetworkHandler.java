@@ -46,6 +46,10 @@ public abstract class NetworkHandler<S extends NetworkHandler> {
         return self;
     }
 
+    public Object owner() {
+        return owner;
+    }
+
     /**
      * Get the network handler node.
      * @return The top node.
@@ -95,19 +99,65 @@ public abstract class NetworkHandler<S extends NetworkHandler> {
     protected void handle(Packet packet) {
         // call parent
         if (parent != null)
-            parent.handle(packet);
+            parent.deliver(this, packet);
+    }
+
+    /**
+     * Handles a packet received by a child handler,
+     * on the thread of the child by default.
+     * The child may recycle the packet once this returns,
+     * so it has to be retained to be handled later.
+     * @param child The handler which received it.
+     * @param packet The packet.
+     */
+    protected void deliver(NetworkHandler child, Packet packet) {
+        handle(packet);
     }
 
     protected abstract boolean canHandleAsync(Packet packet);
     protected abstract void scheduleHandleAsync(Packet packet);
 
+    /**
+     * Handles an incoming packet asynchronously
+     * if possible, otherwise on the current thread.
+     * @param packet The packet.
+     */
+    protected void dispatch(Packet packet) {
+        if (canHandleAsync(packet)) {
+            scheduleHandleAsync(packet);
+        } else {
+            handle(packet);
+        }
+    }
+
     /* ---- Worker ---- */
 
-    public abstract class WorkerThread extends Thread {
+    public abstract class WorkerThread implements Runnable {
         static int id = 0;
 
+        // the name of the thread
+        final String name;
+        // the thread, created on start with
+        // the thread mode of the manager
+        Thread thread;
+
         public WorkerThread() {
-            super("NHWorker-" + (id++));
+            this.name = "NHWorker-" + (id++);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Thread getThread() {
+            return thread;
+        }
+
+        public synchronized void start() {
+            if (thread != null)
+                throw new IllegalStateException("worker " + name + " already started");
+            thread = manager.threadMode().newThread(name, this);
+            thread.start();
         }
 
         @Override
@@ -1,7 +1,9 @@
 package net.orbyfied.hscsms.network;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.orbyfied.hscsms.network.buffer.ByteBufferPool;
 import net.orbyfied.hscsms.service.Logging;
+import net.orbyfied.hscsms.util.worker.HashedWheelTimer;
 import net.orbyfied.j8.registry.Identifier;
 import net.orbyfied.j8.util.logging.Logger;
 import net.orbyfied.j8.util.reflect.Reflector;
@@ -10,6 +12,7 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class NetworkManager {
 
@@ -22,17 +25,104 @@ public class NetworkManager {
     Int2ObjectOpenHashMap<PacketType<? extends Packet>> packetTypesById = new Int2ObjectOpenHashMap<>();
     // the packet types
     ArrayList<PacketType<? extends Packet>> packetTypes = new ArrayList<>();
+    // the compact ids of the packet types, in order
+    // of registration, created when first needed
+    volatile PacketIdMapping packetIdMapping;
+
+    // the thread mode for handler workers
+    ThreadMode threadMode = ThreadMode.PLATFORM;
+
+    // the pool of frame buffers
+    final ByteBufferPool bufferPool = new ByteBufferPool();
+
+    // the shared executor received packets are handled on
+    // if null packets are handled on the io thread
+    ExecutorService dispatchExecutor;
+    // the maximum amount of packets waiting to be
+    // handled per connection before reading pauses
+    int maxPendingPackets = 256;
+
+    // the timer shared by all connections
+    // for idle timeouts, null if not monitored
+    HashedWheelTimer timer;
 
     public Logger getLogger() {
         return LOGGER;
     }
 
-    public NetworkManager register(PacketType<? extends Packet> type) {
-        packetTypesById.put(type.identifier().hashCode(), type);
+    public ThreadMode threadMode() {
+        return threadMode;
+    }
+
+    public NetworkManager threadMode(ThreadMode mode) {
+        this.threadMode = mode;
+        return this;
+    }
+
+    public ByteBufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    public ExecutorService dispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    public NetworkManager dispatchExecutor(ExecutorService executor) {
+        this.dispatchExecutor = executor;
+        return this;
+    }
+
+    public int maxPendingPackets() {
+        return maxPendingPackets;
+    }
+
+    public NetworkManager maxPendingPackets(int maxPendingPackets) {
+        this.maxPendingPackets = maxPendingPackets;
+        return this;
+    }
+
+    public HashedWheelTimer timer() {
+        return timer;
+    }
+
+    public NetworkManager timer(HashedWheelTimer timer) {
+        this.timer = timer;
+        return this;
+    }
+
+    public synchronized NetworkManager register(PacketType<? extends Packet> type) {
+        // check for hash collisions
+        int hash = type.identifier().hashCode();
+        PacketType<? extends Packet> other = packetTypesById.get(hash);
+        if (other == type)
+            return this;
+        if (other != null)
+            throw new IllegalStateException("packet type " + type.identifier() +
+                    " has the same id hash as " + other.identifier());
+
+        packetTypesById.put(hash, type);
         packetTypes.add(type);
+        packetIdMapping = null;
         return this;
     }
 
+    /**
+     * Get the compact ids assigned to the
+     * registered packet types.
+     * @return The id mapping.
+     */
+    public PacketIdMapping packetIdMapping() {
+        PacketIdMapping mapping = packetIdMapping;
+        if (mapping == null) {
+            synchronized (this) {
+                if ((mapping = packetIdMapping) == null)
+                    packetIdMapping = mapping = PacketIdMapping.of(packetTypes);
+            }
+        }
+
+        return mapping;
+    }
+
     public PacketType<? extends Packet> getByIdentifier(Identifier id) {
         return packetTypesById.get(id.hashCode());
     }
@@ -54,6 +144,9 @@ public class NetworkManager {
 
             // return
             return this;
+        } catch (IllegalStateException e) {
+            // fail fast on id collisions
+            throw e;
         } catch (Exception e) {
             e.printStackTrace(Logging.ERR);
             return this;
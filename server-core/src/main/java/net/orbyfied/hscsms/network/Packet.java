@@ -1,11 +1,30 @@
 package net.orbyfied.hscsms.network;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 @SuppressWarnings("rawtypes")
 public abstract class Packet {
 
+    static final AtomicIntegerFieldUpdater<Packet> REF_CNT =
+            AtomicIntegerFieldUpdater.newUpdater(Packet.class, "refCnt");
+
     // the packet type
     final PacketType<? extends Packet> type;
 
+    // the pool to return this packet to
+    // null if the packet is not pooled
+    PacketPool pool;
+    // the next packet in the pool
+    Packet nextPooled;
+    // the reference count, only used if pooled
+    volatile int refCnt = 1;
+
+    // the id of the request this packet is or
+    // answers, 0 if it is neither
+    int requestId;
+    // if it answers the request
+    boolean response;
+
     public Packet(PacketType<? extends Packet> type) {
         this.type = type;
     }
@@ -14,4 +33,89 @@ public abstract class Packet {
         return type;
     }
 
+    /* ---- Requests ---- */
+
+    public int requestId() {
+        return requestId;
+    }
+
+    public boolean isRequest() {
+        return requestId != 0 && !response;
+    }
+
+    public boolean isResponse() {
+        return requestId != 0 && response;
+    }
+
+    /**
+     * Sets the request this packet is or answers.
+     * Set by the network handler when sending
+     * requests and responses or receiving them.
+     * @param id The request id, 0 for none.
+     * @param response If it answers the request.
+     * @return This.
+     */
+    public Packet withRequestId(int id, boolean response) {
+        this.requestId = id;
+        this.response  = response;
+        return this;
+    }
+
+    /* ---- Pooling ---- */
+
+    /**
+     * Check if this packet is borrowed from a pool
+     * and has to be released when no longer used.
+     * @return If it is pooled.
+     */
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    public int refCnt() {
+        return refCnt;
+    }
+
+    /**
+     * Keeps the packet from being recycled after
+     * it was handled, until {@link #release()} is called.
+     * Does nothing if the packet is not pooled.
+     * @return This.
+     */
+    public Packet retain() {
+        if (pool != null)
+            REF_CNT.incrementAndGet(this);
+        return this;
+    }
+
+    /**
+     * Releases a reference to this packet, returning
+     * it to its pool once none are left.
+     * Does nothing if the packet is not pooled.
+     * @return If the packet was recycled.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean release() {
+        if (pool == null)
+            return false;
+
+        int count = REF_CNT.decrementAndGet(this);
+        if (count > 0)
+            return false;
+        if (count < 0)
+            throw new IllegalStateException("packet " + type.identifier() + " released too often");
+
+        requestId = 0;
+        response  = false;
+        onRecycle();
+        pool.recycle(this);
+        return true;
+    }
+
+    /**
+     * Called before the packet is returned to its
+     * pool, should clear references held by it.
+     */
+    protected void onRecycle() { }
+
 }
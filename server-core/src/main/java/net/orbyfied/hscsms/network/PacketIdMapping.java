@@ -0,0 +1,106 @@
+package net.orbyfied.hscsms.network;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps packet types to dense ids, which are sent
+ * as short varints instead of identifier hashes.
+ * The server assigns the ids and sends the table
+ * of identifier hashes to the client in the handshake.
+ */
+@SuppressWarnings("rawtypes")
+public final class PacketIdMapping {
+
+    // the largest id which fits in a two byte varint
+    public static final int MAX_COMPACT_ID = (1 << 14) - 1;
+
+    // the packet types by id, null if unknown
+    final PacketType[] typesById;
+    // the ids by the type index, -1 if unmapped
+    final int[] idsByIndex;
+    // the identifier hashes by id
+    final int[] hashes;
+
+    private PacketIdMapping(PacketType[] typesById, int[] hashes) {
+        this.typesById = typesById;
+        this.hashes    = hashes;
+
+        int maxIndex = -1;
+        for (PacketType type : typesById)
+            if (type != null)
+                maxIndex = Math.max(maxIndex, type.index());
+        idsByIndex = new int[maxIndex + 1];
+        Arrays.fill(idsByIndex, -1);
+        for (int id = 0; id < typesById.length; id++)
+            if (typesById[id] != null)
+                idsByIndex[typesById[id].index()] = id;
+    }
+
+    /**
+     * Creates a mapping assigning ids in order
+     * of the given packet types.
+     * @param types The packet types.
+     * @return The mapping.
+     */
+    public static PacketIdMapping of(List<PacketType<? extends Packet>> types) {
+        int count = Math.min(types.size(), MAX_COMPACT_ID + 1);
+        PacketType[] typesById = new PacketType[count];
+        int[] hashes = new int[count];
+        for (int id = 0; id < count; id++) {
+            typesById[id] = types.get(id);
+            hashes[id]    = typesById[id].identifier().hashCode();
+        }
+
+        return new PacketIdMapping(typesById, hashes);
+    }
+
+    /**
+     * Creates a mapping from the identifier hashes
+     * received from the remote, resolving them with
+     * the locally registered packet types.
+     * @param manager The local network manager.
+     * @param hashes The hashes by id.
+     * @return The mapping.
+     */
+    public static PacketIdMapping ofRemote(NetworkManager manager, int[] hashes) {
+        if (hashes.length > MAX_COMPACT_ID + 1)
+            throw new IllegalArgumentException("too many packet ids: " + hashes.length);
+        PacketType[] typesById = new PacketType[hashes.length];
+        for (int id = 0; id < hashes.length; id++)
+            typesById[id] = manager.getByHash(hashes[id]);
+        return new PacketIdMapping(typesById, hashes.clone());
+    }
+
+    /**
+     * Get the packet type for the id.
+     * @param id The id.
+     * @return The type or null if unknown.
+     */
+    public PacketType<? extends Packet> typeById(int id) {
+        if (id < 0 || id >= typesById.length)
+            return null;
+        return typesById[id];
+    }
+
+    /**
+     * Get the id of the packet type.
+     * @param type The type.
+     * @return The id or -1 if it has none.
+     */
+    public int idOf(PacketType<? extends Packet> type) {
+        int index = type.index();
+        if (index >= idsByIndex.length)
+            return -1;
+        return idsByIndex[index];
+    }
+
+    public int[] hashes() {
+        return hashes.clone();
+    }
+
+    public int size() {
+        return typesById.length;
+    }
+
+}
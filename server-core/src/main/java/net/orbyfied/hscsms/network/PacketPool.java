@@ -0,0 +1,80 @@
+package net.orbyfied.hscsms.network;
+
+import net.orbyfied.hscsms.network.codec.PacketCodec;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pool of packet instances owned by one thread.
+ * The owner borrows instances, any thread may return
+ * them. The packets themselves are the stack nodes,
+ * so borrowing and returning does not allocate.
+ * @param <P> The packet type.
+ */
+@SuppressWarnings("unchecked")
+final class PacketPool<P extends Packet> {
+
+    // the codec to create instances with
+    final PacketCodec<P> codec;
+    // the maximum amount of instances
+    // to create for this pool
+    final int maxSize;
+
+    // the owner thread
+    final Thread owner = Thread.currentThread();
+    // the amount of pooled instances created, owner only
+    int created = 0;
+
+    // the packets returned by the owner, owner only
+    Packet local;
+    // the packets returned by other threads
+    final AtomicReference<Packet> returned = new AtomicReference<>();
+
+    PacketPool(PacketCodec<P> codec, int maxSize) {
+        this.codec   = codec;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Borrows a packet, must be called by the owner.
+     * Creates a new one if the pool is empty, which
+     * is not pooled once the pool is at its size.
+     * @return The packet.
+     */
+    P borrow() throws Throwable {
+        Packet packet = local;
+        if (packet == null)
+            packet = returned.getAndSet(null);
+
+        if (packet != null) {
+            local = packet.nextPooled;
+            packet.nextPooled = null;
+            packet.refCnt = 1;
+            return (P) packet;
+        }
+
+        P newPacket = codec.newInstance();
+        if (created < maxSize) {
+            created++;
+            newPacket.pool = this;
+        }
+
+        return newPacket;
+    }
+
+    void recycle(Packet packet) {
+        if (Thread.currentThread() == owner) {
+            packet.nextPooled = local;
+            local = packet;
+            return;
+        }
+
+        // push to the returned stack
+        Packet head;
+        do {
+            head = returned.get();
+            packet.nextPooled = head;
+        } while (!returned.compareAndSet(head, packet));
+    }
+
+}
@@ -0,0 +1,41 @@
+package net.orbyfied.hscsms.network;
+
+/**
+ * The priority packets of a type are written with.
+ * Queued packets of higher priorities are written
+ * more often, large packets are written in chunks
+ * so they do not hold up higher priority ones.
+ * Packets of the same priority stay in order.
+ */
+public enum PacketPriority {
+
+    /**
+     * Small latency sensitive packets, like
+     * disconnects, heartbeats or typing indicators.
+     */
+    CONTROL(8),
+
+    /**
+     * Regular packets.
+     */
+    NORMAL(4),
+
+    /**
+     * Large transfers, like history pages
+     * or attachments, which can take longer.
+     */
+    BULK(1);
+
+    // the amount of frames written from this
+    // priority per round of the scheduler
+    final int weight;
+
+    PacketPriority(int weight) {
+        this.weight = weight;
+    }
+
+    public int weight() {
+        return weight;
+    }
+
+}
@@ -1,18 +1,52 @@
 package net.orbyfied.hscsms.network;
 
+import net.orbyfied.hscsms.network.buffer.PacketBuffer;
+import net.orbyfied.hscsms.network.codec.PacketCodec;
 import net.orbyfied.j8.registry.Identifier;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class PacketType<P extends Packet> {
 
+    // the next dense index to assign
+    private static final AtomicInteger nextIndex = new AtomicInteger(0);
+
+    /**
+     * Get the amount of indices assigned, so
+     * all type indices are lower than it.
+     * @return The index count.
+     */
+    public static int indexCount() {
+        return nextIndex.get();
+    }
+
     // the packet class
     final Class<P> type;
 
     // the identifier of this type
     final Identifier id;
 
+    // the dense index of this type, unique in this
+    // process, used for array based lookups
+    final int index = nextIndex.getAndIncrement();
+
     // serialization handlers
     Packets.Serializer<P>   serializer;
     Packets.Deserializer<P> deserializer;
+    // buffer serialization handlers, used
+    // instead of the stream handlers if set
+    Packets.BufferSerializer<P>   bufferSerializer;
+    Packets.BufferDeserializer<P> bufferDeserializer;
+
+    // the pools of received packets per thread
+    // null if packets are not pooled
+    ThreadLocal<PacketPool<P>> pools;
+
+    // if packets of this type may be dropped
+    // when the outbound queue of a connection is full
+    boolean droppable = false;
+    // the priority packets of this type are written with
+    PacketPriority priority = PacketPriority.NORMAL;
 
     public PacketType(Class<P> type,
                       Identifier id) {
@@ -30,6 +64,10 @@ public class PacketType<P extends Packet> {
         return id;
     }
 
+    public int index() {
+        return index;
+    }
+
     public Class<? extends Packet> getPacketClass() {
         return type;
     }
@@ -52,4 +90,111 @@ public class PacketType<P extends Packet> {
         return this;
     }
 
+    public Packets.BufferSerializer<P> bufferSerializer() {
+        return bufferSerializer;
+    }
+
+    public PacketType<P> bufferSerializer(Packets.BufferSerializer<P> serializer) {
+        this.bufferSerializer = serializer;
+        return this;
+    }
+
+    public Packets.BufferDeserializer<P> bufferDeserializer() {
+        return bufferDeserializer;
+    }
+
+    public PacketType<P> bufferDeserializer(Packets.BufferDeserializer<P> deserializer) {
+        this.bufferDeserializer = deserializer;
+        return this;
+    }
+
+    /**
+     * Enables pooling of received packets of this type.
+     * Decoded packets are borrowed from a pool of the
+     * decoding thread and released after they are handled,
+     * unless a handler retains them. Handlers must not keep
+     * a pooled packet without retaining it.
+     * Needs a generated {@link PacketCodec}, which fills
+     * the borrowed instances.
+     * @param maxPerThread The maximum amount of pooled instances per thread.
+     * @return This.
+     */
+    public PacketType<P> pooled(int maxPerThread) {
+        if (!(bufferDeserializer instanceof PacketCodec<P> codec))
+            throw new IllegalStateException("pooled packet type " + id + " needs a generated codec");
+        pools = ThreadLocal.withInitial(() -> new PacketPool<>(codec, maxPerThread));
+        return this;
+    }
+
+    public boolean isPooled() {
+        return pools != null;
+    }
+
+    /**
+     * Marks packets of this type as droppable, so they
+     * are discarded instead of disconnecting the peer
+     * when its outbound queue is full and the overflow
+     * policy is to drop. Should only be used for packets
+     * which are sent again or made obsolete later.
+     * @return This.
+     */
+    public PacketType<P> droppable() {
+        this.droppable = true;
+        return this;
+    }
+
+    public boolean isDroppable() {
+        return droppable;
+    }
+
+    public PacketType<P> priority(PacketPriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public PacketPriority priority() {
+        return priority;
+    }
+
+    /**
+     * Writes the packet into the buffer, with the buffer
+     * serializer or through a stream adapter otherwise.
+     * @param packet The packet.
+     * @param buf The buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public void serialize(Packet packet, PacketBuffer buf) throws Throwable {
+        if (bufferSerializer != null) {
+            bufferSerializer.serialize(this, (P) packet, buf);
+        } else {
+            serializer.serialize(this, (P) packet, buf.dataOutput());
+        }
+    }
+
+    /**
+     * Reads a packet from the buffer, with the buffer
+     * deserializer or through a stream adapter otherwise.
+     * @param buf The buffer.
+     * @return The packet.
+     */
+    @SuppressWarnings("unchecked")
+    public P deserialize(PacketBuffer buf) throws Throwable {
+        if (pools != null) {
+            // fill a pooled instance
+            P packet = pools.get().borrow();
+            try {
+                ((PacketCodec<P>) bufferDeserializer).read(packet, buf);
+            } catch (Throwable t) {
+                packet.release();
+                throw t;
+            }
+
+            return packet;
+        } else if (bufferDeserializer != null) {
+            return bufferDeserializer.deserialize(this, buf);
+        } else {
+            return deserializer.deserialize(this, buf.dataInput());
+        }
+    }
+
 }
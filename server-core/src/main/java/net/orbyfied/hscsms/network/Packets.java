@@ -1,5 +1,7 @@
 package net.orbyfied.hscsms.network;
 
+import net.orbyfied.hscsms.network.buffer.PacketBuffer;
+
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 
@@ -14,4 +16,18 @@ public class Packets {
         P deserialize(PacketType type, DataInputStream stream) throws Throwable;
     }
 
+    /*
+        Buffer based serialization, preferred
+        over the stream based serializers.
+     */
+
+    public interface BufferSerializer<P extends Packet> {
+        void serialize(PacketType type, P packet,
+                       PacketBuffer buf) throws Throwable;
+    }
+
+    public interface BufferDeserializer<P extends Packet> {
+        P deserialize(PacketType type, PacketBuffer buf) throws Throwable;
+    }
+
 }
@@ -0,0 +1,80 @@
+package net.orbyfied.hscsms.network;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The kind of threads network handlers
+ * should run their workers and executors on.
+ */
+public enum ThreadMode {
+
+    /**
+     * Regular operating system threads.
+     */
+    PLATFORM {
+        @Override
+        public Thread newThread(String name, Runnable runnable) {
+            return Thread.ofPlatform().name(name).unstarted(runnable);
+        }
+
+        @Override
+        public ScheduledExecutorService newSingleThreadExecutor(String name) {
+            return Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name(name).factory());
+        }
+
+        @Override
+        public ExecutorService newExecutor(String name, int threads) {
+            return Executors.newFixedThreadPool(threads, Thread.ofPlatform().name(name + "-", 0).factory());
+        }
+    },
+
+    /**
+     * Virtual threads, which are cheap to keep
+     * blocked on a read or write.
+     */
+    VIRTUAL {
+        @Override
+        public Thread newThread(String name, Runnable runnable) {
+            return Thread.ofVirtual().name(name).unstarted(runnable);
+        }
+
+        @Override
+        public ScheduledExecutorService newSingleThreadExecutor(String name) {
+            return Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name(name).factory());
+        }
+
+        @Override
+        public ExecutorService newExecutor(String name, int threads) {
+            // a thread per task, virtual threads are not pooled
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+    };
+
+    /**
+     * Creates a new, unstarted thread.
+     * @param name The thread name.
+     * @param runnable The target.
+     * @return The thread.
+     */
+    public abstract Thread newThread(String name, Runnable runnable);
+
+    /**
+     * Creates a new executor with a single thread,
+     * which can also run delayed tasks.
+     * @param name The thread name.
+     * @return The executor.
+     */
+    public abstract ScheduledExecutorService newSingleThreadExecutor(String name);
+
+    /**
+     * Creates a new executor for running many
+     * short tasks, like handling packets.
+     * @param name The thread name prefix.
+     * @param threads The amount of threads, if pooled.
+     * @return The executor.
+     */
+    public abstract ExecutorService newExecutor(String name, int threads);
+
+}
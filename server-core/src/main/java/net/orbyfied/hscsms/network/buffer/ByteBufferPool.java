@@ -0,0 +1,107 @@
+package net.orbyfied.hscsms.network.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of reusable heap byte buffers, bucketed
+ * into power of two size classes. Buffers larger
+ * than the largest class are allocated on demand
+ * and not retained.
+ */
+public class ByteBufferPool {
+
+    // the smallest and largest size class
+    // as a power of two
+    static final int MIN_SHIFT = 8;  // 256 B
+    static final int MAX_SHIFT = 20; // 1 MB
+
+    /**
+     * A stack of buffers of one size class.
+     * Uses a fixed array so releasing a buffer
+     * does not allocate.
+     */
+    static class SizeClass {
+        final int size;
+        final ByteBuffer[] buffers;
+        int count;
+
+        SizeClass(int size, int retained) {
+            this.size    = size;
+            this.buffers = new ByteBuffer[retained];
+        }
+
+        synchronized ByteBuffer poll() {
+            if (count == 0)
+                return null;
+            ByteBuffer buf = buffers[--count];
+            buffers[count] = null;
+            return buf;
+        }
+
+        synchronized boolean offer(ByteBuffer buf) {
+            if (count == buffers.length)
+                return false;
+            buffers[count++] = buf;
+            return true;
+        }
+    }
+
+    /////////////////////////////////////
+
+    // the size classes, indexed by shift - MIN_SHIFT
+    final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    public ByteBufferPool(int retainedPerClass) {
+        for (int i = 0; i < classes.length; i++) {
+            int size = 1 << (i + MIN_SHIFT);
+            // retain less of the large buffers
+            int retained = Math.max(4, retainedPerClass >> Math.max(0, i - 4));
+            classes[i] = new SizeClass(size, retained);
+        }
+    }
+
+    public ByteBufferPool() {
+        this(1024);
+    }
+
+    // get the size class for the given size
+    // or null if it is too large to be pooled
+    private SizeClass classFor(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        if (shift > MAX_SHIFT)
+            return null;
+        return classes[Math.max(shift, MIN_SHIFT) - MIN_SHIFT];
+    }
+
+    /**
+     * Get a cleared buffer with at least
+     * the given capacity.
+     * @param minCapacity The minimum capacity.
+     * @return The buffer.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        SizeClass sizeClass = classFor(minCapacity);
+        if (sizeClass == null)
+            return ByteBuffer.allocate(minCapacity);
+
+        ByteBuffer buf = sizeClass.poll();
+        if (buf == null)
+            return ByteBuffer.allocate(sizeClass.size);
+        return buf.clear();
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer
+     * must not be used after releasing it.
+     * @param buf The buffer, may be null.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.isDirect() || buf.isReadOnly())
+            return;
+        SizeClass sizeClass = classFor(buf.capacity());
+        if (sizeClass == null || sizeClass.size != buf.capacity())
+            return;
+        sizeClass.offer(buf);
+    }
+
+}
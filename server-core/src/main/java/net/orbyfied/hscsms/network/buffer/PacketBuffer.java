@@ -0,0 +1,453 @@
+package net.orbyfied.hscsms.network.buffer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Reads and writes packet data directly from and
+ * into a byte buffer. Supports varints, length prefixed
+ * UTF-8 strings, UUIDs and slices of the buffer.
+ * When created with a pool, writing swaps the buffer
+ * for a larger one from the pool when it is full.
+ * Can be reused by pointing it to another buffer.
+ */
+public class PacketBuffer {
+
+    // the default maximum length of strings and arrays read
+    public static final int DEFAULT_MAX_LENGTH = 1 << 20;
+
+    // the pool to grow with, null if fixed
+    final ByteBufferPool pool;
+    // the current buffer
+    ByteBuffer buf;
+
+    // the stream adapters, created when first used
+    DataOutputStream dataOutput;
+    DataInputStream dataInput;
+
+    public PacketBuffer() {
+        this.pool = null;
+    }
+
+    public PacketBuffer(ByteBuffer buf) {
+        this.pool = null;
+        this.buf  = buf;
+    }
+
+    public PacketBuffer(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    public PacketBuffer use(ByteBuffer buf) {
+        this.buf = buf;
+        return this;
+    }
+
+    /**
+     * Get the current buffer, which may be
+     * a different one than initially used.
+     * @return The buffer.
+     */
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    public int remaining() {
+        return buf.remaining();
+    }
+
+    public boolean hasRemaining() {
+        return buf.hasRemaining();
+    }
+
+    /**
+     * Makes sure n more bytes can be written,
+     * growing the buffer if created with a pool.
+     * @param n The amount of bytes.
+     */
+    public void ensureWritable(int n) {
+        if (buf.remaining() >= n || pool == null)
+            return;
+        ByteBuffer newBuf = pool.acquire(Math.max(buf.capacity() * 2, buf.position() + n));
+        buf.flip();
+        newBuf.put(buf);
+        pool.release(buf);
+        buf = newBuf;
+    }
+
+    /* ---- Writing ---- */
+
+    public PacketBuffer writeByte(int b) {
+        ensureWritable(1);
+        buf.put((byte) b);
+        return this;
+    }
+
+    public PacketBuffer writeBoolean(boolean b) {
+        return writeByte(b ? 1 : 0);
+    }
+
+    public PacketBuffer writeShort(int s) {
+        ensureWritable(2);
+        buf.putShort((short) s);
+        return this;
+    }
+
+    public PacketBuffer writeInt(int i) {
+        ensureWritable(4);
+        buf.putInt(i);
+        return this;
+    }
+
+    public PacketBuffer writeLong(long l) {
+        ensureWritable(8);
+        buf.putLong(l);
+        return this;
+    }
+
+    public PacketBuffer writeFloat(float f) {
+        ensureWritable(4);
+        buf.putFloat(f);
+        return this;
+    }
+
+    public PacketBuffer writeDouble(double d) {
+        ensureWritable(8);
+        buf.putDouble(d);
+        return this;
+    }
+
+    public PacketBuffer writeVarInt(int i) {
+        ensureWritable(5);
+        writeVarInt(buf, i);
+        return this;
+    }
+
+    /**
+     * Writes a varint into the buffer directly.
+     * @param buf The buffer.
+     * @param i The value.
+     */
+    public static void writeVarInt(ByteBuffer buf, int i) {
+        while ((i & ~0x7F) != 0) {
+            buf.put((byte) (i & 0x7F | 0x80));
+            i >>>= 7;
+        }
+
+        buf.put((byte) i);
+    }
+
+    public PacketBuffer writeVarLong(long l) {
+        ensureWritable(10);
+        while ((l & ~0x7FL) != 0) {
+            buf.put((byte) (l & 0x7F | 0x80));
+            l >>>= 7;
+        }
+
+        buf.put((byte) l);
+        return this;
+    }
+
+    public PacketBuffer writeUUID(UUID uuid) {
+        ensureWritable(16);
+        buf.putLong(uuid.getMostSignificantBits());
+        buf.putLong(uuid.getLeastSignificantBits());
+        return this;
+    }
+
+    public PacketBuffer writeBytes(byte[] bytes, int off, int len) {
+        ensureWritable(len);
+        buf.put(bytes, off, len);
+        return this;
+    }
+
+    public PacketBuffer writeBytes(byte[] bytes) {
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    public PacketBuffer writeBytes(ByteBuffer src) {
+        ensureWritable(src.remaining());
+        buf.put(src);
+        return this;
+    }
+
+    /**
+     * Writes the array prefixed with its length.
+     * @param bytes The bytes.
+     * @return This.
+     */
+    public PacketBuffer writeByteArray(byte[] bytes) {
+        writeVarInt(bytes.length);
+        return writeBytes(bytes);
+    }
+
+    /**
+     * Writes the string as UTF-8, prefixed with the
+     * encoded length, encoding it straight into the buffer.
+     * @param str The string.
+     * @return This.
+     */
+    public PacketBuffer writeString(String str) {
+        int len = str.length();
+        int utfLength = utf8Length(str);
+        writeVarInt(utfLength);
+        ensureWritable(utfLength);
+
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | c >> 6));
+                buf.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                int cp;
+                if (Character.isHighSurrogate(c) && i + 1 < len &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    cp = Character.toCodePoint(c, str.charAt(++i));
+                    buf.put((byte) (0xF0 | cp >> 18));
+                    buf.put((byte) (0x80 | cp >> 12 & 0x3F));
+                    buf.put((byte) (0x80 | cp >> 6 & 0x3F));
+                    buf.put((byte) (0x80 | cp & 0x3F));
+                } else {
+                    // unpaired surrogate
+                    buf.put((byte) '?');
+                }
+            } else {
+                buf.put((byte) (0xE0 | c >> 12));
+                buf.put((byte) (0x80 | c >> 6 & 0x3F));
+                buf.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Calculates the length of the string
+     * when encoded as UTF-8.
+     * @param str The string.
+     * @return The length in bytes.
+     */
+    public static int utf8Length(String str) {
+        int len = str.length();
+        int utfLength = len;
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                utfLength += 1;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < len &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    // 4 bytes for 2 chars
+                    utfLength += 2;
+                    i++;
+                }
+            } else {
+                utfLength += 2;
+            }
+        }
+
+        return utfLength;
+    }
+
+    /* ---- Reading ---- */
+
+    public byte readByte() {
+        return buf.get();
+    }
+
+    public int readUnsignedByte() {
+        return buf.get() & 0xFF;
+    }
+
+    public boolean readBoolean() {
+        return buf.get() != 0;
+    }
+
+    public short readShort() {
+        return buf.getShort();
+    }
+
+    public int readInt() {
+        return buf.getInt();
+    }
+
+    public long readLong() {
+        return buf.getLong();
+    }
+
+    public float readFloat() {
+        return buf.getFloat();
+    }
+
+    public double readDouble() {
+        return buf.getDouble();
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("varint is longer than 5 bytes");
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("varlong is longer than 10 bytes");
+    }
+
+    public UUID readUUID() {
+        return new UUID(buf.getLong(), buf.getLong());
+    }
+
+    public PacketBuffer readBytes(byte[] dst, int off, int len) {
+        buf.get(dst, off, len);
+        return this;
+    }
+
+    /**
+     * Reads a view of the next bytes, sharing
+     * the content of the buffer without copying.
+     * The view is only valid until the buffer
+     * is released.
+     * @param length The amount of bytes.
+     * @return The slice.
+     */
+    public ByteBuffer readSlice(int length) {
+        if (length < 0 || length > buf.remaining())
+            throw new IndexOutOfBoundsException("slice of " + length + " bytes, " + buf.remaining() + " remaining");
+        ByteBuffer slice = buf.slice(buf.position(), length);
+        buf.position(buf.position() + length);
+        return slice;
+    }
+
+    private int readLength(int maxLength) throws IOException {
+        int length = readVarInt();
+        if (length < 0 || length > maxLength)
+            throw new IOException("length " + length + " exceeds maximum of " + maxLength);
+        if (length > buf.remaining())
+            throw new EOFException("length " + length + " exceeds remaining " + buf.remaining() + " bytes");
+        return length;
+    }
+
+    public byte[] readByteArray(int maxLength) throws IOException {
+        byte[] bytes = new byte[readLength(maxLength)];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    public byte[] readByteArray() throws IOException {
+        return readByteArray(DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Reads a length prefixed UTF-8 string,
+     * decoding it straight from the buffer.
+     * @param maxLength The maximum length in bytes.
+     * @return The string.
+     */
+    public String readString(int maxLength) throws IOException {
+        int length = readLength(maxLength);
+        String str;
+        if (buf.hasArray()) {
+            str = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            str = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return str;
+    }
+
+    public String readString() throws IOException {
+        return readString(DEFAULT_MAX_LENGTH);
+    }
+
+    /* ---- Stream Adapters ---- */
+
+    /**
+     * Get a data output stream writing into this
+     * buffer, for stream based serializers.
+     * @return The stream.
+     */
+    public DataOutputStream dataOutput() {
+        if (dataOutput == null) {
+            dataOutput = new DataOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    writeByte(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    writeBytes(b, off, len);
+                }
+            });
+        }
+
+        return dataOutput;
+    }
+
+    /**
+     * Get a data input stream reading from this
+     * buffer, for stream based deserializers.
+     * @return The stream.
+     */
+    public DataInputStream dataInput() {
+        if (dataInput == null) {
+            dataInput = new DataInputStream(new InputStream() {
+                @Override
+                public int read() {
+                    if (!buf.hasRemaining())
+                        return -1;
+                    return buf.get() & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0)
+                        return 0;
+                    int n = Math.min(len, buf.remaining());
+                    if (n == 0)
+                        return -1;
+                    buf.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) {
+                    int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+                    buf.position(buf.position() + k);
+                    return k;
+                }
+
+                @Override
+                public int available() {
+                    return buf.remaining();
+                }
+            });
+        }
+
+        return dataInput;
+    }
+
+}
@@ -0,0 +1,359 @@
+package net.orbyfied.hscsms.network.codec;
+
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.Packets;
+import net.orbyfied.hscsms.network.buffer.PacketBuffer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializer and deserializer generated from the
+ * {@link PacketField} annotated fields of a packet class.
+ * The fields are accessed through method handles resolved
+ * once, so encoding and decoding run without reflection.
+ * The packet class needs a constructor without parameters,
+ * which may be private.
+ * @param <P> The packet type.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public final class PacketCodec<P extends Packet>
+        implements Packets.BufferSerializer<P>, Packets.BufferDeserializer<P> {
+
+    // the codecs for field types which are not primitives
+    static final Map<Class<?>, TypeCodec<?>> typeCodecs = new ConcurrentHashMap<>();
+
+    static {
+        registerType(String.class, new TypeCodec<>() {
+            @Override
+            public void write(PacketBuffer buf, String value) {
+                buf.writeString(value);
+            }
+
+            @Override
+            public String read(PacketBuffer buf, int maxLength) throws IOException {
+                return buf.readString(maxLength);
+            }
+        });
+
+        registerType(UUID.class, new TypeCodec<>() {
+            @Override
+            public void write(PacketBuffer buf, UUID value) {
+                buf.writeUUID(value);
+            }
+
+            @Override
+            public UUID read(PacketBuffer buf, int maxLength) {
+                return buf.readUUID();
+            }
+        });
+
+        registerType(byte[].class, new TypeCodec<>() {
+            @Override
+            public void write(PacketBuffer buf, byte[] value) {
+                buf.writeByteArray(value);
+            }
+
+            @Override
+            public byte[] read(PacketBuffer buf, int maxLength) throws IOException {
+                return buf.readByteArray(maxLength);
+            }
+        });
+
+        registerType(int[].class, new TypeCodec<>() {
+            @Override
+            public void write(PacketBuffer buf, int[] value) {
+                buf.writeVarInt(value.length);
+                for (int i : value)
+                    buf.writeInt(i);
+            }
+
+            @Override
+            public int[] read(PacketBuffer buf, int maxLength) throws IOException {
+                int length = buf.readVarInt();
+                if (length < 0 || length > maxLength || length * 4L > buf.remaining())
+                    throw new IOException("invalid int array length " + length);
+                int[] value = new int[length];
+                for (int i = 0; i < length; i++)
+                    value[i] = buf.readInt();
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Registers the codec for fields of the type,
+     * which is also used for fields of its subtypes.
+     * @param type The type.
+     * @param codec The codec.
+     */
+    public static <T> void registerType(Class<T> type, TypeCodec<T> codec) {
+        typeCodecs.put(type, codec);
+    }
+
+    // find the codec for a field type
+    static TypeCodec<?> findTypeCodec(Class<?> type) {
+        TypeCodec<?> codec = typeCodecs.get(type);
+        if (codec != null)
+            return codec;
+        for (Map.Entry<Class<?>, TypeCodec<?>> entry : typeCodecs.entrySet())
+            if (entry.getKey().isAssignableFrom(type))
+                return entry.getValue();
+        return null;
+    }
+
+    /**
+     * Generates the codec for the packet type and
+     * sets it as the buffer serializer and deserializer.
+     * @param type The packet type.
+     * @return The packet type.
+     */
+    public static <P extends Packet> PacketType<P> generate(PacketType<P> type) {
+        PacketCodec<P> codec = of((Class<P>) type.getPacketClass());
+        return type.bufferSerializer(codec).bufferDeserializer(codec);
+    }
+
+    /**
+     * Generates the codec for the packet class.
+     * @param klass The class.
+     * @return The codec.
+     */
+    public static <P extends Packet> PacketCodec<P> of(Class<P> klass) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(klass, MethodHandles.lookup());
+
+            // get constructor
+            Constructor<P> constructor = klass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            MethodHandle constructorHandle = lookup.unreflectConstructor(constructor)
+                    .asType(MethodType.methodType(Packet.class));
+
+            // collect annotated fields in order
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = klass; c != Packet.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (field.isAnnotationPresent(PacketField.class) && !Modifier.isStatic(field.getModifiers())) {
+                        fields.add(field);
+                    }
+                }
+            }
+
+            fields.sort(Comparator.comparingInt(f -> f.getAnnotation(PacketField.class).value()));
+            FieldCodec[] fieldCodecs = new FieldCodec[fields.size()];
+            for (int i = 0; i < fieldCodecs.length; i++) {
+                Field field = fields.get(i);
+                if (i > 0 && field.getAnnotation(PacketField.class).value() ==
+                        fields.get(i - 1).getAnnotation(PacketField.class).value())
+                    throw new IllegalArgumentException("duplicate field position in " + klass.getName() + ": " + field.getName());
+                fieldCodecs[i] = FieldCodec.of(lookup, field);
+            }
+
+            return new PacketCodec<>(constructorHandle, fieldCodecs);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("failed to generate codec for " + klass.getName(), e);
+        }
+    }
+
+    ///////////////////////////////////////
+
+    // the constructor, as ()Packet
+    final MethodHandle constructor;
+    // the fields in order
+    final FieldCodec[] fields;
+
+    private PacketCodec(MethodHandle constructor, FieldCodec[] fields) {
+        this.constructor = constructor;
+        this.fields      = fields;
+    }
+
+    @Override
+    public void serialize(PacketType type, P packet, PacketBuffer buf) throws Throwable {
+        for (FieldCodec field : fields)
+            field.write(packet, buf);
+    }
+
+    @Override
+    public P deserialize(PacketType type, PacketBuffer buf) throws Throwable {
+        P packet = newInstance();
+        read(packet, buf);
+        return packet;
+    }
+
+    /**
+     * Creates an empty packet instance.
+     * @return The packet.
+     */
+    public P newInstance() throws Throwable {
+        return (P) (Packet) constructor.invokeExact();
+    }
+
+    /**
+     * Reads all fields into the packet.
+     * @param packet The packet.
+     * @param buf The buffer.
+     */
+    public void read(P packet, PacketBuffer buf) throws Throwable {
+        for (FieldCodec field : fields)
+            field.read(packet, buf);
+    }
+
+    /* ---- Fields ---- */
+
+    /*
+        The field handles are typed exactly, with the
+        packet as Packet and the value as its primitive
+        type or Object, so invokeExact does not box.
+     */
+
+    static abstract class FieldCodec {
+
+        final MethodHandle getter;
+        final MethodHandle setter;
+
+        FieldCodec(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        abstract void write(Packet packet, PacketBuffer buf) throws Throwable;
+        abstract void read(Packet packet, PacketBuffer buf) throws Throwable;
+
+        static FieldCodec of(MethodHandles.Lookup lookup, Field field) throws Exception {
+            field.setAccessible(true);
+            Class<?> type = field.getType();
+            Class<?> handleType = type.isPrimitive() ? type : Object.class;
+            MethodHandle getter = lookup.unreflectGetter(field)
+                    .asType(MethodType.methodType(handleType, Packet.class));
+            MethodHandle setter = lookup.unreflectSetter(field)
+                    .asType(MethodType.methodType(void.class, Packet.class, handleType));
+
+            if (type == boolean.class) return new BooleanField(getter, setter);
+            if (type == byte.class)    return new ByteField(getter, setter);
+            if (type == short.class)   return new ShortField(getter, setter);
+            if (type == int.class)     return new IntField(getter, setter);
+            if (type == long.class)    return new LongField(getter, setter);
+            if (type == float.class)   return new FloatField(getter, setter);
+            if (type == double.class)  return new DoubleField(getter, setter);
+            if (type.isEnum())         return new EnumField(getter, setter, type.getEnumConstants());
+
+            PacketField annotation = field.getAnnotation(PacketField.class);
+            TypeCodec codec;
+            if (annotation.codec() != TypeCodec.class) {
+                Constructor<? extends TypeCodec> codecConstructor = annotation.codec().getDeclaredConstructor();
+                codecConstructor.setAccessible(true);
+                codec = codecConstructor.newInstance();
+            } else {
+                codec = findTypeCodec(type);
+            }
+
+            if (codec == null)
+                throw new IllegalArgumentException("no codec for type " + type.getName() +
+                        " of field " + field.getDeclaringClass().getName() + "." + field.getName());
+            return new ObjectField(getter, setter, codec, annotation.maxLength());
+        }
+
+    }
+
+    static final class BooleanField extends FieldCodec {
+        BooleanField(MethodHandle getter, MethodHandle setter) { super(getter, setter); }
+
+        @Override void write(Packet packet, PacketBuffer buf) throws Throwable { buf.writeBoolean((boolean) getter.invokeExact(packet)); }
+        @Override void read(Packet packet, PacketBuffer buf) throws Throwable { setter.invokeExact(packet, buf.readBoolean()); }
+    }
+
+    static final class ByteField extends FieldCodec {
+        ByteField(MethodHandle getter, MethodHandle setter) { super(getter, setter); }
+
+        @Override void write(Packet packet, PacketBuffer buf) throws Throwable { buf.writeByte((byte) getter.invokeExact(packet)); }
+        @Override void read(Packet packet, PacketBuffer buf) throws Throwable { setter.invokeExact(packet, buf.readByte()); }
+    }
+
+    static final class ShortField extends FieldCodec {
+        ShortField(MethodHandle getter, MethodHandle setter) { super(getter, setter); }
+
+        @Override void write(Packet packet, PacketBuffer buf) throws Throwable { buf.writeShort((short) getter.invokeExact(packet)); }
+        @Override void read(Packet packet, PacketBuffer buf) throws Throwable { setter.invokeExact(packet, buf.readShort()); }
+    }
+
+    static final class IntField extends FieldCodec {
+        IntField(MethodHandle getter, MethodHandle setter) { super(getter, setter); }
+
+        @Override void write(Packet packet, PacketBuffer buf) throws Throwable { buf.writeInt((int) getter.invokeExact(packet)); }
+        @Override void read(Packet packet, PacketBuffer buf) throws Throwable { setter.invokeExact(packet, buf.readInt()); }
+    }
+
+    static final class LongField extends FieldCodec {
+        LongField(MethodHandle getter, MethodHandle setter) { super(getter, setter); }
+
+        @Override void write(Packet packet, PacketBuffer buf) throws Throwable { buf.writeLong((long) getter.invokeExact(packet)); }
+        @Override void read(Packet packet, PacketBuffer buf) throws Throwable { setter.invokeExact(packet, buf.readLong()); }
+    }
+
+    static final class FloatField extends FieldCodec {
+        FloatField(MethodHandle getter, MethodHandle setter) { super(getter, setter); }
+
+        @Override void write(Packet packet, PacketBuffer buf) throws Throwable { buf.writeFloat((float) getter.invokeExact(packet)); }
+        @Override void read(Packet packet, PacketBuffer buf) throws Throwable { setter.invokeExact(packet, buf.readFloat()); }
+    }
+
+    static final class DoubleField extends FieldCodec {
+        DoubleField(MethodHandle getter, MethodHandle setter) { super(getter, setter); }
+
+        @Override void write(Packet packet, PacketBuffer buf) throws Throwable { buf.writeDouble((double) getter.invokeExact(packet)); }
+        @Override void read(Packet packet, PacketBuffer buf) throws Throwable { setter.invokeExact(packet, buf.readDouble()); }
+    }
+
+    static final class EnumField extends FieldCodec {
+        final Object[] constants;
+
+        EnumField(MethodHandle getter, MethodHandle setter, Object[] constants) {
+            super(getter, setter);
+            this.constants = constants;
+        }
+
+        @Override
+        void write(Packet packet, PacketBuffer buf) throws Throwable {
+            buf.writeVarInt(((Enum) (Object) getter.invokeExact(packet)).ordinal());
+        }
+
+        @Override
+        void read(Packet packet, PacketBuffer buf) throws Throwable {
+            int ordinal = buf.readVarInt();
+            if (ordinal < 0 || ordinal >= constants.length)
+                throw new IOException("invalid enum ordinal " + ordinal);
+            setter.invokeExact(packet, constants[ordinal]);
+        }
+    }
+
+    static final class ObjectField extends FieldCodec {
+        final TypeCodec codec;
+        final int maxLength;
+
+        ObjectField(MethodHandle getter, MethodHandle setter, TypeCodec codec, int maxLength) {
+            super(getter, setter);
+            this.codec     = codec;
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        void write(Packet packet, PacketBuffer buf) throws Throwable {
+            codec.write(buf, (Object) getter.invokeExact(packet));
+        }
+
+        @Override
+        void read(Packet packet, PacketBuffer buf) throws Throwable {
+            setter.invokeExact(packet, codec.read(buf, maxLength));
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package net.orbyfied.hscsms.network.codec;
+
+import net.orbyfied.hscsms.network.buffer.PacketBuffer;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a packet field to be serialized by
+ * the generated {@link PacketCodec}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface PacketField {
+
+    /**
+     * The position of the field in the
+     * packet, fields are written in order.
+     */
+    int value();
+
+    /**
+     * The maximum length of strings and arrays
+     * read, in bytes or elements.
+     */
+    int maxLength() default PacketBuffer.DEFAULT_MAX_LENGTH;
+
+    /**
+     * The codec to use for this field, needs a
+     * constructor without parameters. By default
+     * the codec registered for the field type is used.
+     */
+    Class<? extends TypeCodec> codec() default TypeCodec.class;
+
+}
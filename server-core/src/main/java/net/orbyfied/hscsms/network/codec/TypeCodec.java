@@ -0,0 +1,22 @@
+package net.orbyfied.hscsms.network.codec;
+
+import net.orbyfied.hscsms.network.buffer.PacketBuffer;
+
+/**
+ * Writes and reads values of a type
+ * for generated packet codecs.
+ * @param <T> The value type.
+ */
+public interface TypeCodec<T> {
+
+    void write(PacketBuffer buf, T value) throws Throwable;
+
+    /**
+     * Reads a value.
+     * @param buf The buffer.
+     * @param maxLength The maximum length of the field.
+     * @return The value.
+     */
+    T read(PacketBuffer buf, int maxLength) throws Throwable;
+
+}
@@ -0,0 +1,1450 @@
+package net.orbyfied.hscsms.network.handler;
+
+import net.orbyfied.hscsms.network.NetworkHandler;
+import net.orbyfied.hscsms.network.NetworkManager;
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketIdMapping;
+import net.orbyfied.hscsms.network.PacketPriority;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.buffer.ByteBufferPool;
+import net.orbyfied.hscsms.network.buffer.PacketBuffer;
+import net.orbyfied.hscsms.security.EncryptionProfile;
+import net.orbyfied.hscsms.service.Logging;
+import net.orbyfied.hscsms.util.worker.HashedWheelTimer;
+import net.orbyfied.hscsms.util.worker.SerialExecutor;
+
+import java.io.*;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Base for network handlers bound to a single
+ * remote peer. Implements the wire format, encryption
+ * and dispatch shared by all transports, leaving the
+ * actual reading and writing of bytes to the subclass.
+ * @param <S> Self.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public abstract class ConnectionNetworkHandler<S extends ConnectionNetworkHandler> extends NetworkHandler<S> {
+
+    // disconnect handler
+    protected Consumer<Throwable> disconnectHandler;
+    // called before a slow consumer is disconnected
+    protected Consumer<S> slowConsumerHandler;
+    // called before an idle connection is disconnected
+    protected Consumer<S> idleHandler;
+    // called before a peer exceeding a rate limit is disconnected
+    protected Consumer<S> rateLimitHandler;
+
+    // decryption (and encryption) profile, switched
+    // by handlers while the io thread decodes
+    protected volatile EncryptionProfile encryptionProfile;
+    // if it should automatically write all packets encrypted
+    protected volatile boolean autoEncrypt;
+    // if serialized packets may only be sent encrypted,
+    // for connections which are encrypted after a handshake
+    protected volatile boolean encryptionRequired;
+
+    // when to flush queued packets
+    protected FlushPolicy flushPolicy = FlushPolicy.END_OF_BATCH;
+
+    // the queue of encoded frames to write
+    protected final OutboundQueue outbound = new OutboundQueue();
+    // if it is being disconnected as a slow consumer
+    protected final AtomicBoolean slowConsumer = new AtomicBoolean(false);
+
+    // the compact packet ids agreed on in the handshake
+    // used to decode frames with compact ids
+    protected volatile PacketIdMapping packetIds;
+    // if frames should be sent with compact ids
+    protected volatile boolean compactPacketIds;
+
+    // the minimum payload size to compress sent
+    // frames at, or -1 if compression is disabled
+    protected volatile int compressionThreshold = -1;
+
+    // handles received packets in order on the
+    // dispatch executor, null to handle on the io thread
+    protected SerialExecutor dispatcher;
+
+    // the requests waiting for a response by id
+    protected final Map<Integer, CompletableFuture<Packet>> pendingRequests = new ConcurrentHashMap<>();
+    protected final AtomicInteger nextRequestId = new AtomicInteger(0);
+    // the default time to wait for a response
+    protected long requestTimeout = 10_000;
+
+    // the idle timeouts, null if not monitored
+    protected IdlePolicy idlePolicy;
+    // creates the heartbeats sent when idle
+    protected Supplier<? extends Packet> heartbeatFactory;
+    // the last time a frame was received and queued
+    protected volatile long lastReadTime = System.nanoTime();
+    protected volatile long lastWriteTime = System.nanoTime();
+    // the next idle check on the shared timer
+    protected volatile HashedWheelTimer.Timeout idleCheck;
+
+    // the rate limits of received packets, only
+    // used by the reading thread, null if unlimited
+    protected RateLimiter.ConnectionLimiter rateLimits;
+
+    // the node shared by the connections in the same
+    // state, handled before the own node, null if none
+    protected volatile HandlerNode protocolNode;
+
+    // the types of packets which change how the frames
+    // after them are decoded, like switching the key,
+    // reading is held until they were handled
+    protected volatile Set<PacketType<?>> barrierTypes = Set.of();
+    // if reading is held for a barrier packet, and the
+    // packet it is held for once decoded
+    protected volatile boolean readHeld;
+    protected volatile Packet barrierPacket;
+    // decodes barrier packets off the reading thread, as
+    // decrypting them may be costly, like with the private
+    // key in a handshake, null to decode them when read
+    protected Executor barrierExecutor;
+
+    private final S self = (S) this;
+
+    public ConnectionNetworkHandler(final NetworkManager manager,
+                                    final NetworkHandler parent) {
+        super(manager, parent);
+    }
+
+    @Override
+    protected void handle(Packet packet) {
+        try {
+            // complete the request it answers
+            if (packet.isResponse()) {
+                completeRequest(packet);
+                return;
+            }
+
+            super.handle(packet);
+
+            // call the shared node, then the own node
+            HandlerNode shared = protocolNode;
+            if (shared != null && shared.handle(this, packet).chain() == ChainAction.HALT)
+                return;
+            this.node().handle(this, packet);
+        } finally {
+            // recycle if pooled and not retained
+            boolean barrier = packet == barrierPacket;
+            packet.release();
+
+            // the frames after it can be decoded now
+            if (barrier)
+                releaseRead();
+        }
+    }
+
+    /**
+     * Sets the types of packets which change how the
+     * frames after them are decoded, like the ones
+     * switching keys. Reading is held after receiving
+     * one until it was handled, so the frames after it
+     * are not decoded before the switch when packets
+     * are handled on the dispatcher.
+     * @param types The packet types.
+     * @return This.
+     */
+    public S withBarrierTypes(Set<PacketType<?>> types) {
+        this.barrierTypes = types;
+        return self;
+    }
+
+    /**
+     * Sets the executor barrier packets are decrypted and
+     * deserialized on instead of the reading thread, which
+     * is held meanwhile, so costly decryption like with a
+     * private key does not block reading other connections.
+     * Rate limits are applied before handing them off.
+     * @param executor The executor or null.
+     * @return This.
+     */
+    public S withBarrierExecutor(Executor executor) {
+        this.barrierExecutor = executor;
+        return self;
+    }
+
+    // holds reading until the barrier packet was handled
+    private void holdRead(Packet packet) {
+        barrierPacket = packet;
+        readHeld      = true;
+    }
+
+    // continues reading after a barrier packet
+    protected void releaseRead() {
+        barrierPacket = null;
+        readHeld      = false;
+        onDispatchDrained();
+    }
+
+    /**
+     * Check if the reading thread should pause before
+     * decoding the next frame, because the dispatcher is
+     * saturated or a barrier packet was not handled yet.
+     * @return If it should pause.
+     */
+    protected boolean shouldPauseReading() {
+        return readHeld || (dispatcher != null && dispatcher.isSaturated());
+    }
+
+    /**
+     * Check if reading paused by {@link #shouldPauseReading()}
+     * may continue.
+     * @return If it may resume.
+     */
+    protected boolean canResumeReading() {
+        return !readHeld && (dispatcher == null || dispatcher.pending() <= dispatcher.resumePending());
+    }
+
+    /**
+     * Sets the node shared by many connections, handled
+     * before the own node of this one. Its handlers find
+     * the state of the connection through the owner, and
+     * may not remove nodes, as they are shared.
+     * @param node The node or null.
+     * @return This.
+     */
+    public S withProtocolNode(HandlerNode node) {
+        this.protocolNode = node;
+        return self;
+    }
+
+    public HandlerNode protocolNode() {
+        return protocolNode;
+    }
+
+    public S withDisconnectHandler(Consumer<Throwable> consumer) {
+        this.disconnectHandler = consumer;
+        return self;
+    }
+
+    public synchronized S withEncryptionProfile(EncryptionProfile profile) {
+        this.encryptionProfile = profile;
+        return self;
+    }
+
+    public synchronized S autoEncrypt(boolean b) {
+        this.autoEncrypt = b;
+        return self;
+    }
+
+    /**
+     * Sets if packets serialized for many connections
+     * may only be sent encrypted, so they are dropped
+     * instead of sent in plain before the handshake.
+     * @param b If encryption is required.
+     * @return This.
+     */
+    public S withEncryptionRequired(boolean b) {
+        this.encryptionRequired = b;
+        return self;
+    }
+
+    public S withFlushPolicy(FlushPolicy policy) {
+        this.flushPolicy = policy;
+        return self;
+    }
+
+    public FlushPolicy flushPolicy() {
+        return flushPolicy;
+    }
+
+    public S withOutboundPolicy(OutboundPolicy policy) {
+        outbound.withPolicy(policy);
+        return self;
+    }
+
+    public S withSlowConsumerHandler(Consumer<S> consumer) {
+        this.slowConsumerHandler = consumer;
+        return self;
+    }
+
+    public OutboundQueue outbound() {
+        return outbound;
+    }
+
+    public S withPacketIds(PacketIdMapping mapping) {
+        this.packetIds = mapping;
+        return self;
+    }
+
+    public PacketIdMapping packetIds() {
+        return packetIds;
+    }
+
+    /**
+     * Sets if packets should be sent with compact ids,
+     * which requires the remote to know the same id
+     * mapping. Types without a compact id are still
+     * sent with their identifier hash.
+     * @param b If compact ids should be used.
+     * @return This.
+     */
+    public S compactPacketIds(boolean b) {
+        this.compactPacketIds = b;
+        return self;
+    }
+
+    /**
+     * Sets the minimum payload size at which sent frames
+     * are compressed. Received frames are decompressed
+     * regardless, so this can be set as soon as the
+     * remote supports compression.
+     * @param threshold The threshold in bytes or -1 to disable.
+     * @return This.
+     */
+    public S withCompressionThreshold(int threshold) {
+        this.compressionThreshold = threshold;
+        return self;
+    }
+
+    public int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public S withRequestTimeout(long millis) {
+        this.requestTimeout = millis;
+        return self;
+    }
+
+    public long requestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Sets when the connection times out and heartbeats
+     * are sent. Requires the manager to have a timer.
+     * @param policy The idle policy or null to disable.
+     * @return This.
+     */
+    public S withIdlePolicy(IdlePolicy policy) {
+        this.idlePolicy = policy;
+        return self;
+    }
+
+    public IdlePolicy idlePolicy() {
+        return idlePolicy;
+    }
+
+    public S withHeartbeat(Supplier<? extends Packet> factory) {
+        this.heartbeatFactory = factory;
+        return self;
+    }
+
+    public S withIdleHandler(Consumer<S> consumer) {
+        this.idleHandler = consumer;
+        return self;
+    }
+
+    /**
+     * Limits the rate packets are received at,
+     * sharing the global limit of the limiter.
+     * @param limiter The rate limiter or null.
+     * @return This.
+     */
+    public S withRateLimiter(RateLimiter limiter) {
+        this.rateLimits = limiter != null ? limiter.newConnection() : null;
+        return self;
+    }
+
+    public S withRateLimitHandler(Consumer<S> consumer) {
+        this.rateLimitHandler = consumer;
+        return self;
+    }
+
+    @Override
+    public S start() {
+        setupDispatcher();
+        startIdleMonitor();
+        return super.start();
+    }
+
+    /**
+     * Creates the dispatcher if the manager has
+     * a dispatch executor and none was set yet.
+     */
+    protected void setupDispatcher() {
+        if (dispatcher != null || manager.dispatchExecutor() == null)
+            return;
+        dispatcher = new SerialExecutor(manager.dispatchExecutor(), manager.maxPendingPackets())
+                .withResumeHandler(this::onDispatchDrained)
+                .withBatchHandler(this::flush);
+    }
+
+    public SerialExecutor dispatcher() {
+        return dispatcher;
+    }
+
+    // check if the current thread is handling packets
+    // of this connection on the dispatcher
+    protected boolean inDispatcher() {
+        return dispatcher != null && dispatcher.inExecutor();
+    }
+
+    /**
+     * Applies the rate limits before handling a
+     * received packet. Called by the reading thread.
+     * @param packet The packet.
+     */
+    @Override
+    protected void dispatch(Packet packet) {
+        if (!acquireRateLimit(packet.type())) {
+            boolean barrier = packet == barrierPacket;
+            packet.release();
+            if (barrier)
+                releaseRead();
+            return;
+        }
+
+        super.dispatch(packet);
+    }
+
+    // applies the rate limits to a received packet,
+    // delaying reading if needed, called by the reading
+    // thread, returns false if the packet is dropped
+    private boolean acquireRateLimit(PacketType<?> type) {
+        RateLimiter.ConnectionLimiter limits = rateLimits;
+        RateLimit.Action action;
+        if (limits == null || (action = limits.acquire(type)) == null)
+            return true;
+
+        switch (action) {
+            case DROP -> {
+                return false;
+            }
+
+            case DELAY -> delayReading(limits.delayNanos());
+
+            case DISCONNECT -> {
+                onRateLimited(type);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Called when a received packet exceeded a rate
+     * limit with the disconnect action. Aborts the
+     * connection after calling the rate limit handler.
+     * @param type The type of the packet.
+     */
+    protected void onRateLimited(PacketType<?> type) {
+        if (!isOpen())
+            return;
+        if (rateLimitHandler != null)
+            rateLimitHandler.accept(self);
+        abort(new IOException("rate limit exceeded by " + type.identifier()));
+    }
+
+    /**
+     * Stops reading from the connection for the given
+     * time, after the packets already read. Called by
+     * the reading thread.
+     * @param nanos The time in nanoseconds.
+     */
+    protected abstract void delayReading(long nanos);
+
+    @Override
+    protected boolean canHandleAsync(Packet packet) {
+        return dispatcher != null;
+    }
+
+    @Override
+    protected void scheduleHandleAsync(Packet packet) {
+        dispatcher.execute(() -> handle(packet));
+    }
+
+    /* ---- Idle Monitoring ---- */
+
+    /*
+        Receiving and sending only record the time, the
+        check on the shared timer compares it to the policy
+        and schedules itself again for the earliest time the
+        connection could be idle, so every packet costs a
+        volatile write instead of rescheduling a timeout.
+     */
+
+    /**
+     * Starts checking for idle timeouts on the
+     * timer of the manager, if there is an idle
+     * policy and the manager has a timer.
+     */
+    protected void startIdleMonitor() {
+        HashedWheelTimer timer = manager.timer();
+        if (idlePolicy == null || !idlePolicy.isEnabled() || timer == null || idleCheck != null)
+            return;
+
+        long now = System.nanoTime();
+        lastReadTime  = now;
+        lastWriteTime = now;
+        scheduleIdleCheck(timer, now);
+    }
+
+    // checks the idle times, on the timer thread
+    private void checkIdle() {
+        if (!isOpen() || slowConsumer.get())
+            return;
+
+        long now = System.nanoTime();
+        long readTimeout = TimeUnit.MILLISECONDS.toNanos(idlePolicy.readTimeoutMillis());
+        if (readTimeout > 0 && now - lastReadTime >= readTimeout) {
+            onIdleTimeout(now - lastReadTime);
+            return;
+        }
+
+        // keep the remote from timing out
+        long heartbeatInterval = TimeUnit.MILLISECONDS.toNanos(idlePolicy.heartbeatIntervalMillis());
+        if (heartbeatInterval > 0 && heartbeatFactory != null && now - lastWriteTime >= heartbeatInterval) {
+            try {
+                sendAsync(heartbeatFactory.get());
+            } catch (Throwable t) {
+                t.printStackTrace(Logging.ERR);
+            }
+        }
+
+        scheduleIdleCheck(manager.timer(), now);
+    }
+
+    // schedules the check for the earliest
+    // time the connection could be idle
+    private void scheduleIdleCheck(HashedWheelTimer timer, long now) {
+        long delay = Long.MAX_VALUE;
+        long readTimeout = TimeUnit.MILLISECONDS.toNanos(idlePolicy.readTimeoutMillis());
+        if (readTimeout > 0)
+            delay = Math.min(delay, lastReadTime + readTimeout - now);
+        long heartbeatInterval = TimeUnit.MILLISECONDS.toNanos(idlePolicy.heartbeatIntervalMillis());
+        if (heartbeatInterval > 0 && heartbeatFactory != null)
+            delay = Math.min(delay, lastWriteTime + heartbeatInterval - now);
+        if (delay == Long.MAX_VALUE)
+            return;
+
+        idleCheck = timer.schedule(this::checkIdle, Math.max(delay, timer.tickNanos()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Called when nothing was received for longer than
+     * the read timeout. Aborts the connection after
+     * calling the idle handler.
+     * @param idleNanos The time nothing was received for.
+     */
+    protected void onIdleTimeout(long idleNanos) {
+        if (idleHandler != null)
+            idleHandler.accept(self);
+        abort(new IOException("read timed out after " + TimeUnit.NANOSECONDS.toMillis(idleNanos) + "ms"));
+    }
+
+    /**
+     * Called when enough packets were handled for reading
+     * to resume, if it was paused because the dispatcher
+     * was saturated or for a barrier packet.
+     */
+    protected abstract void onDispatchDrained();
+
+    /* ---- Connection ---- */
+
+    /**
+     * Check if the connection to the
+     * remote peer is still open.
+     * @return If it is open.
+     */
+    public abstract boolean isOpen();
+
+    /**
+     * Closes the connection to the remote
+     * peer, which will eventually call the
+     * disconnect handler.
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Get the address of the remote peer.
+     * @return The address or null if unknown.
+     */
+    public abstract SocketAddress getRemoteAddress();
+
+    /**
+     * Closes the connection immediately, dropping
+     * the queued packets instead of writing them.
+     * Calls the disconnect handler with the error.
+     * @param t The error.
+     */
+    public abstract void abort(Throwable t);
+
+    public S disconnect() {
+        // deactivate worker
+        stop();
+
+        // return
+        return self;
+    }
+
+    /* ---- Sending ---- */
+
+    /*
+        Sent packets are encoded into frames and queued,
+        the flush policy decides when the queue is written.
+     */
+
+    /**
+     * Writes all queued packets now,
+     * regardless of the flush policy.
+     * @return This.
+     */
+    public abstract S flush();
+
+    /**
+     * Check if the current thread may block until
+     * the outbound queue drained, which it may not
+     * if it is the one writing the queue.
+     * @return If it can block.
+     */
+    protected boolean canBlockSender() {
+        return true;
+    }
+
+    /**
+     * Checks if the packet may be queued, applying the
+     * overflow policy if the outbound queue is full.
+     * @param type The packet type.
+     * @return If it should be queued.
+     */
+    protected boolean admit(PacketType<?> type) {
+        return admit(type, true);
+    }
+
+    /**
+     * Checks if the packet may be queued, applying the
+     * overflow policy if the outbound queue is full.
+     * When the sender may not block the block policy
+     * drops or disconnects like the drop policy.
+     * @param type The packet type.
+     * @param mayBlock If the sender may wait for the queue.
+     * @return If it should be queued.
+     */
+    protected boolean admit(PacketType<?> type, boolean mayBlock) {
+        if (outbound.isWritable())
+            return true;
+        if (slowConsumer.get())
+            return false;
+
+        switch (outbound.policy().overflow()) {
+            case BLOCK -> {
+                if (!mayBlock) {
+                    if (type.isDroppable()) {
+                        outbound.onDropped();
+                        return false;
+                    }
+
+                    break;
+                }
+
+                if (!canBlockSender())
+                    return true;
+
+                // write what we can and wait for the peer
+                flush();
+                try {
+                    while (!outbound.awaitWritable(100)) {
+                        if (!isOpen())
+                            return false;
+                    }
+
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            case DROP -> {
+                if (type.isDroppable()) {
+                    outbound.onDropped();
+                    return false;
+                }
+            }
+        }
+
+        onSlowConsumer();
+        return false;
+    }
+
+    /**
+     * Called when the peer does not read fast enough
+     * to keep the outbound queue bounded. Aborts the
+     * connection after calling the slow consumer handler.
+     */
+    protected void onSlowConsumer() {
+        if (!slowConsumer.compareAndSet(false, true))
+            return;
+        if (slowConsumerHandler != null)
+            slowConsumerHandler.accept(self);
+        abort(new IOException("slow consumer, " + outbound.bytes() + " bytes queued"));
+    }
+
+    public abstract S sendSyncRaw(Packet packet);
+    public abstract CompletableFuture<S> sendAsyncRaw(Packet packet);
+
+    public abstract S sendSyncEncrypted(Packet packet, EncryptionProfile encryption);
+
+    /**
+     * Encodes the packet and queues it for writing,
+     * flushing according to the flush policy.
+     * @param packet The packet.
+     * @param encryption The encryption or null to send it raw.
+     * @return If it was queued, false if the connection
+     *         is closed or the outbound policy refused it.
+     */
+    protected abstract boolean queuePacket(Packet packet, EncryptionProfile encryption) throws Throwable;
+    public abstract CompletableFuture<S> sendAsyncEncrypted(Packet packet, EncryptionProfile encryption);
+
+    public S sendSync(Packet packet) {
+        if (autoEncrypt && encryptionProfile != null) {
+            return sendSyncEncrypted(packet, encryptionProfile);
+        }
+
+        return sendSyncRaw(packet);
+    }
+
+    public CompletableFuture<S> sendAsync(final Packet packet) {
+        if (autoEncrypt && encryptionProfile != null) {
+            return sendAsyncEncrypted(packet, encryptionProfile);
+        }
+
+        return sendAsyncRaw(packet);
+    }
+
+    /* ---- Requests ---- */
+
+    /*
+        Requests are regular packets sent with a request id,
+        which the remote copies into the packet it responds
+        with. Responses complete the pending request instead
+        of being handled, so many requests can be in flight.
+     */
+
+    /**
+     * Sends a packet as a request, failing the returned
+     * future with a timeout exception if no response
+     * was received within the default request timeout.
+     * @param request The request packet.
+     * @param <R> The response packet type.
+     * @return The future response.
+     */
+    public <R extends Packet> CompletableFuture<R> sendRequest(Packet request) {
+        return sendRequest(request, requestTimeout);
+    }
+
+    /**
+     * Sends a packet as a request. Pooled response packets
+     * are retained for the future and have to be released
+     * by the caller once it is done with them. The future
+     * fails right away if the request could not be queued,
+     * and on the dispatch executor if it times out.
+     * @param request The request packet.
+     * @param timeoutMillis The time to wait for a response.
+     * @param <R> The response packet type.
+     * @return The future response.
+     */
+    public <R extends Packet> CompletableFuture<R> sendRequest(Packet request, long timeoutMillis) {
+        int id;
+        do {
+            id = nextRequestId.incrementAndGet() & Integer.MAX_VALUE;
+        } while (id == 0);
+
+        final int requestId = id;
+        CompletableFuture<Packet> future = new CompletableFuture<>();
+        pendingRequests.put(requestId, future);
+
+        // time out on the shared timer if there is one, the
+        // future is failed on the dispatch executor so dependent
+        // stages never run on (and block) the timer thread
+        Runnable expire = () -> expireRequest(future, timeoutMillis);
+        HashedWheelTimer timer = manager.timer();
+        if (timer != null) {
+            HashedWheelTimer.Timeout timeout = timer.schedule(expire, timeoutMillis, TimeUnit.MILLISECONDS);
+            future.whenComplete((response, t) -> {
+                timeout.cancel();
+                pendingRequests.remove(requestId, future);
+            });
+        } else {
+            CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(expire);
+            future.whenComplete((response, t) -> pendingRequests.remove(requestId, future));
+        }
+
+        request.withRequestId(requestId, false);
+        try {
+            // fail instead of waiting for the
+            // timeout if it was never sent
+            if (!isOpen()) {
+                future.completeExceptionally(new IOException("connection is closed"));
+            } else if (!queuePacket(request, autoEncrypt ? encryptionProfile : null)) {
+                future.completeExceptionally(new IOException("request " + request.type().identifier() + " was refused"));
+            }
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+
+        return (CompletableFuture<R>) future;
+    }
+
+    // fails a request which timed out, on the dispatch
+    // executor if there is one and it is still running
+    private void expireRequest(CompletableFuture<Packet> future, long timeoutMillis) {
+        if (future.isDone())
+            return;
+        Runnable fail = () -> future.completeExceptionally(
+                new TimeoutException("request timed out after " + timeoutMillis + "ms"));
+        Executor executor = manager.dispatchExecutor();
+        if (executor != null) {
+            try {
+                executor.execute(fail);
+                return;
+            } catch (RejectedExecutionException ignored) { }
+        }
+
+        ForkJoinPool.commonPool().execute(fail);
+    }
+
+    /**
+     * Sends a packet as the response to a request.
+     * @param request The request.
+     * @param response The response packet.
+     * @return This.
+     */
+    public S respond(Packet request, Packet response) {
+        if (!request.isRequest())
+            throw new IllegalArgumentException("packet " + request.type().identifier() + " is not a request");
+        response.withRequestId(request.requestId(), true);
+        return sendSync(response);
+    }
+
+    // completes the pending request with the response,
+    // dropping it if the request already timed out
+    private void completeRequest(Packet response) {
+        CompletableFuture<Packet> future = pendingRequests.remove(response.requestId());
+        if (future != null && future.complete(response.retain()))
+            return;
+
+        // nobody is waiting for it
+        if (future != null)
+            response.release();
+    }
+
+    /**
+     * Queues a frame which was just encoded,
+     * flushing according to the flush policy.
+     * @param frame The pooled frame buffer.
+     * @param priority The priority to write it with.
+     */
+    protected abstract void queueFrame(ByteBuffer frame, PacketPriority priority);
+
+    /**
+     * Adds an encoded frame to the outbound queue,
+     * splitting it into chunks on a new stream if
+     * it is large, so frames of higher priorities
+     * can be written in between.
+     * @param frame The pooled frame buffer.
+     * @param priority The priority.
+     */
+    protected void addFrame(ByteBuffer frame, PacketPriority priority) {
+        lastWriteTime = System.nanoTime();
+        if (frame.remaining() <= CHUNK_SIZE) {
+            outbound.add(frame, priority);
+            return;
+        }
+
+        ByteBufferPool pool = bufferPool();
+        int streamId = nextStreamId.incrementAndGet();
+        try {
+            while (frame.hasRemaining()) {
+                int length = Math.min(CHUNK_SIZE, frame.remaining());
+                boolean last = length == frame.remaining();
+
+                // copy the next part of the frame into a chunk
+                ByteBuffer chunk = pool.acquire(FRAME_HEADER_SIZE + length);
+                chunk.put((byte) (last ? FLAG_CHUNK | FLAG_LAST_CHUNK : FLAG_CHUNK));
+                chunk.putInt(streamId);
+                chunk.putInt(length);
+                chunk.put(frame.slice(frame.position(), length));
+                frame.position(frame.position() + length);
+
+                outbound.add(chunk.flip(), priority);
+            }
+        } finally {
+            pool.release(frame);
+        }
+    }
+
+    /**
+     * Sends a packet serialized for many connections,
+     * only encrypting it for this one. Encrypted if
+     * packets are automatically encrypted, dropped if
+     * not encrypted while encryption is required.
+     * Never blocks the sender, a full outbound queue
+     * drops the packet or disconnects the peer instead.
+     * @param packet The serialized packet.
+     * @return If the packet was queued.
+     */
+    public boolean sendSerialized(SerializedPacket packet) {
+        EncryptionProfile encryption;
+        synchronized (this) {
+            encryption = autoEncrypt ? encryptionProfile : null;
+        }
+
+        if (encryption == null && encryptionRequired)
+            return false;
+        if (!isOpen() || !admit(packet.type(), false))
+            return false;
+
+        try {
+            queueFrame(encodeFrame(packet, encryption), packet.type().priority());
+            return true;
+        } catch (Throwable t) {
+            t.printStackTrace(Logging.ERR);
+            return false;
+        }
+    }
+
+    /* ---- Wire Format ---- */
+
+    /*
+        Every packet is sent as a frame of:
+          [flags: byte] [type: int] [length: int] [payload: length bytes]
+        where the payload is the serialized packet,
+        encrypted if the encrypted flag is set.
+        With the compact id flag set the type is the id
+        from the id mapping, as a one or two byte varint.
+        With the compressed flag set the payload, after
+        decryption, is the uncompressed length as a varint
+        followed by the deflated packet.
+        With the request or response flag set the packet,
+        after decompression, starts with the request id
+        as a varint.
+        Large frames are split into chunks on a stream,
+        sent as frames with the chunk flag, the stream id
+        as the type and a part of the frame as the payload.
+        The last chunk also has the last chunk flag set,
+        after which the reassembled frame is decoded.
+     */
+
+    // the maximum and minimum size of the frame header
+    public static final int FRAME_HEADER_SIZE     = 9;
+    public static final int MIN_FRAME_HEADER_SIZE = 6;
+    public static final int MAX_FRAME_SIZE    = 16 * 1024 * 1024;
+
+    // frame flags
+    public static final byte FLAG_ENCRYPTED = 1;
+    public static final byte FLAG_COMPACT_ID = 2;
+    public static final byte FLAG_COMPRESSED = 4;
+    public static final byte FLAG_REQUEST = 8;
+    public static final byte FLAG_RESPONSE = 16;
+    public static final byte FLAG_CHUNK = 32;
+    public static final byte FLAG_LAST_CHUNK = 64;
+
+    // the largest frame sent without chunking
+    // and the size of the chunks
+    public static final int CHUNK_SIZE = 16 * 1024;
+    // the maximum amount of streams being received at once
+    static final int MAX_OPEN_STREAMS = 16;
+
+    // the initial buffer size for encoding
+    static final int INITIAL_FRAME_BUFFER_SIZE = 256;
+    // the minimum payload size worth compressing
+    static final int MIN_COMPRESSION_SIZE = 32;
+
+    // reused frame encoding buffer, guarded by itself
+    private final PacketBuffer encoderBuffer = new PacketBuffer(manager.bufferPool());
+    // reused frame decoding buffer, only used by the reading thread
+    private final PacketBuffer decoderBuffer = new PacketBuffer();
+
+    // the compressor, guarded by the encoder buffer, and
+    // the decompressor, only used by the reading thread
+    // both are created when first needed
+    private Deflater deflater;
+    private Inflater inflater;
+
+    // the id of the last stream sent
+    private final AtomicInteger nextStreamId = new AtomicInteger(0);
+    // the chunks received of streams by id,
+    // only used by the reading thread
+    private final Map<Integer, ByteBuffer> openStreams = new HashMap<>();
+    private final PacketBuffer streamBuffer = new PacketBuffer(manager.bufferPool());
+
+    /**
+     * Get the pool frame buffers are taken from.
+     * @return The buffer pool.
+     */
+    public ByteBufferPool bufferPool() {
+        return manager.bufferPool();
+    }
+
+    /**
+     * Encodes a packet into a frame, encrypting the
+     * payload if an encryption profile is provided.
+     * The returned buffer is flipped for reading and
+     * should be released to the pool when written.
+     * @param packet The packet.
+     * @param encryption The encryption profile or null.
+     * @return The pooled frame buffer.
+     */
+    protected ByteBuffer encodeFrame(Packet packet,
+                                     EncryptionProfile encryption) throws Throwable {
+        PacketType type = packet.type();
+        ByteBufferPool pool = bufferPool();
+
+        ByteBuffer buf;
+        byte flags = 0;
+        synchronized (encoderBuffer) {
+            // serialize packet after the header
+            buf = pool.acquire(INITIAL_FRAME_BUFFER_SIZE);
+            buf.position(FRAME_HEADER_SIZE);
+            encoderBuffer.use(buf);
+            try {
+                // write request id
+                if (packet.requestId() != 0) {
+                    encoderBuffer.writeVarInt(packet.requestId());
+                    flags |= packet.isResponse() ? FLAG_RESPONSE : FLAG_REQUEST;
+                }
+
+                type.serialize(packet, encoderBuffer);
+            } finally {
+                buf = encoderBuffer.buffer();
+                encoderBuffer.use(null);
+            }
+
+            // compress large payloads
+            int threshold = compressionThreshold;
+            int plainLength = buf.position() - FRAME_HEADER_SIZE;
+            if (threshold >= 0 && plainLength >= threshold && plainLength >= MIN_COMPRESSION_SIZE) {
+                if (deflater == null)
+                    deflater = new Deflater();
+                ByteBuffer compressed = compress(deflater, pool, buf.duplicate().flip().position(FRAME_HEADER_SIZE), FRAME_HEADER_SIZE);
+                if (compressed != null) {
+                    pool.release(buf);
+                    buf = compressed;
+                    flags |= FLAG_COMPRESSED;
+                }
+            }
+        }
+
+        if (encryption != null) {
+            // encrypt payload into a new buffer
+            ByteBuffer plain = buf;
+            plain.flip().position(FRAME_HEADER_SIZE);
+            buf = pool.acquire(FRAME_HEADER_SIZE + encryption.encryptedSize(plain.remaining()));
+            buf.position(FRAME_HEADER_SIZE);
+            try {
+                encryption.encrypt(plain, buf);
+            } finally {
+                pool.release(plain);
+            }
+
+            flags |= FLAG_ENCRYPTED;
+        }
+
+        return writeHeader(type, buf, flags);
+    }
+
+    /**
+     * Encodes a packet serialized for many connections
+     * into a frame, encrypting the payload if an
+     * encryption profile is provided.
+     * @param packet The serialized packet.
+     * @param encryption The encryption profile or null.
+     * @return The pooled frame buffer.
+     */
+    protected ByteBuffer encodeFrame(SerializedPacket packet,
+                                     EncryptionProfile encryption) throws Throwable {
+        ByteBufferPool pool = bufferPool();
+        byte flags = 0;
+
+        // use the shared compressed payload
+        ByteBuffer payload = packet.plain();
+        int threshold = compressionThreshold;
+        int plainLength = payload.remaining();
+        if (threshold >= 0 && plainLength >= threshold && plainLength >= MIN_COMPRESSION_SIZE) {
+            ByteBuffer compressed = packet.compressed();
+            if (compressed != null) {
+                payload = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+
+        ByteBuffer buf;
+        if (encryption != null) {
+            // encrypt payload after the header
+            buf = pool.acquire(FRAME_HEADER_SIZE + encryption.encryptedSize(payload.remaining()));
+            buf.position(FRAME_HEADER_SIZE);
+            encryption.encrypt(payload, buf);
+            flags |= FLAG_ENCRYPTED;
+        } else {
+            // copy payload after the header
+            buf = pool.acquire(FRAME_HEADER_SIZE + payload.remaining());
+            buf.position(FRAME_HEADER_SIZE);
+            buf.put(payload);
+        }
+
+        return writeHeader(packet.type(), buf, flags);
+    }
+
+    // writes the frame header right before the payload,
+    // which ends at the position of the buffer, and
+    // returns the buffer flipped to the start of the frame
+    private ByteBuffer writeHeader(PacketType type, ByteBuffer buf, byte flags) throws IOException {
+        int length = buf.position() - FRAME_HEADER_SIZE;
+        if (length > MAX_FRAME_SIZE)
+            throw new IOException("frame of " + length + " bytes exceeds maximum frame size");
+        buf.putInt(FRAME_HEADER_SIZE - 4, length);
+
+        int start;
+        PacketIdMapping ids = packetIds;
+        int id = compactPacketIds && ids != null ? ids.idOf(type) : -1;
+        if (id >= 0) {
+            // compact varint id
+            flags |= FLAG_COMPACT_ID;
+            if (id < 0x80) {
+                start = FRAME_HEADER_SIZE - 6;
+                buf.put(start + 1, (byte) id);
+            } else {
+                start = FRAME_HEADER_SIZE - 7;
+                buf.put(start + 1, (byte) (id & 0x7F | 0x80));
+                buf.put(start + 2, (byte) (id >>> 7));
+            }
+        } else {
+            // identifier hash
+            start = 0;
+            buf.putInt(1, type.identifier().hashCode());
+        }
+
+        buf.put(start, flags);
+        return buf.flip().position(start);
+    }
+
+    // compresses the plain bytes into a new pooled buffer after
+    // the offset, positioned at the end of the compressed bytes,
+    // or returns null if they do not get smaller
+    static ByteBuffer compress(Deflater deflater, ByteBufferPool pool,
+                               ByteBuffer plain, int offset) {
+        int length = plain.remaining();
+        ByteBuffer compressed = pool.acquire(offset + length);
+        compressed.position(offset).limit(offset + length);
+        PacketBuffer.writeVarInt(compressed, length);
+
+        // deflate at most the uncompressed size
+        deflater.setInput(plain);
+        deflater.finish();
+        while (!deflater.finished() && compressed.hasRemaining())
+            deflater.deflate(compressed);
+        boolean smaller = deflater.finished() && compressed.hasRemaining();
+        deflater.reset();
+
+        if (!smaller) {
+            pool.release(compressed);
+            return null;
+        }
+
+        return compressed.limit(compressed.capacity());
+    }
+
+    // decompresses the payload into a new pooled buffer
+    private ByteBuffer decompress(ByteBuffer payload) throws IOException {
+        decoderBuffer.use(payload);
+        int length;
+        try {
+            length = decoderBuffer.readVarInt();
+        } finally {
+            decoderBuffer.use(null);
+        }
+
+        checkFrameLength(length);
+        if (inflater == null)
+            inflater = new Inflater();
+
+        ByteBuffer plain = bufferPool().acquire(length);
+        plain.limit(length);
+        try {
+            inflater.setInput(payload);
+            while (!inflater.finished() && plain.hasRemaining()) {
+                if (inflater.inflate(plain) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+            }
+
+            if (!inflater.finished() || plain.hasRemaining())
+                throw new IOException("compressed payload does not match length " + length);
+        } catch (DataFormatException e) {
+            bufferPool().release(plain);
+            throw new IOException("invalid compressed payload", e);
+        } catch (IOException e) {
+            bufferPool().release(plain);
+            throw e;
+        } finally {
+            inflater.reset();
+        }
+
+        return plain.flip();
+    }
+
+    /**
+     * Decodes a two byte compact packet id.
+     * @param b0 The first byte, with the continuation bit set.
+     * @param b1 The second byte.
+     * @return The id.
+     */
+    protected static int compactId(int b0, int b1) throws IOException {
+        if ((b1 & 0x80) != 0)
+            throw new IOException("compact packet id longer than two bytes");
+        return (b0 & 0x7F) | (b1 << 7);
+    }
+
+    /**
+     * Checks the payload length of a received frame.
+     * @param length The length.
+     */
+    protected static void checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new IOException("invalid frame length " + length);
+    }
+
+    /**
+     * Decodes the payload of a received frame into
+     * a packet, decrypting and decompressing it if
+     * needed. The payload is read from its position
+     * to its limit.
+     * @param flags The frame flags.
+     * @param typeId The packet type hash or compact id.
+     * @param payload The payload.
+     * @return The packet or null if the type is unknown.
+     */
+    protected Packet decodeFrame(byte flags,
+                                 int typeId,
+                                 ByteBuffer payload) throws Throwable {
+        lastReadTime = System.nanoTime();
+        if ((flags & FLAG_CHUNK) != 0)
+            return decodeChunk(flags, typeId, payload);
+
+        // get packet type
+        PacketType<? extends Packet> packetType;
+        if ((flags & FLAG_COMPACT_ID) != 0) {
+            PacketIdMapping ids = packetIds;
+            if (ids == null)
+                throw new IOException("received compact packet id without id mapping");
+            packetType = ids.typeById(typeId);
+        } else {
+            packetType = manager.getByHash(typeId);
+        }
+
+        if (packetType == null)
+            return null;
+
+        if (!barrierTypes.contains(packetType))
+            return decodePayload(flags, packetType, payload);
+
+        Executor executor = barrierExecutor;
+        if (executor == null) {
+            Packet packet = decodePayload(flags, packetType, payload);
+            holdRead(packet);
+            return packet;
+        }
+
+        // decode on the executor, reading is held meanwhile
+        if (!acquireRateLimit(packetType))
+            return null;
+        decodeBarrier(executor, flags, packetType, payload);
+        return null;
+    }
+
+    // decodes a barrier packet on the executor and dispatches
+    // it, the frames after it are read once it was handled
+    private void decodeBarrier(Executor executor,
+                               byte flags,
+                               PacketType<? extends Packet> packetType,
+                               ByteBuffer payload) {
+        ByteBufferPool pool = bufferPool();
+        ByteBuffer copy = pool.acquire(payload.remaining());
+        copy.put(payload).flip();
+
+        readHeld = true;
+        try {
+            executor.execute(() -> {
+                Packet packet;
+                try {
+                    packet = decodePayload(flags, packetType, copy);
+                } catch (Throwable t) {
+                    abort(t);
+                    return;
+                } finally {
+                    pool.release(copy);
+                }
+
+                holdRead(packet);
+                if (canHandleAsync(packet)) {
+                    scheduleHandleAsync(packet);
+                } else {
+                    handle(packet);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pool.release(copy);
+            abort(e);
+        }
+    }
+
+    // decrypts, decompresses and deserializes the payload
+    private Packet decodePayload(byte flags,
+                                 PacketType<? extends Packet> packetType,
+                                 ByteBuffer payload) throws Throwable {
+        ByteBuffer plain = null;
+        ByteBuffer decompressed = null;
+        try {
+            if ((flags & FLAG_ENCRYPTED) != 0) {
+                // check for decryption profile
+                if (encryptionProfile == null) {
+                    throw new IllegalArgumentException("can not decrypt encrypted packet, no decryption profile set");
+                }
+
+                // decrypt into pooled buffer
+                plain = bufferPool().acquire(payload.remaining());
+                encryptionProfile.decrypt(payload, plain);
+                payload = plain.flip();
+            }
+
+            if ((flags & FLAG_COMPRESSED) != 0) {
+                // decompress into pooled buffer
+                decompressed = decompress(payload);
+                payload = decompressed;
+            }
+
+            // read request id
+            decoderBuffer.use(payload);
+            int requestId = 0;
+            if ((flags & (FLAG_REQUEST | FLAG_RESPONSE)) != 0)
+                requestId = decoderBuffer.readVarInt();
+
+            // deserialize
+            Packet packet = packetType.deserialize(decoderBuffer);
+            if (requestId != 0)
+                packet.withRequestId(requestId, (flags & FLAG_RESPONSE) != 0);
+            return packet;
+        } finally {
+            decoderBuffer.use(null);
+            bufferPool().release(plain);
+            bufferPool().release(decompressed);
+        }
+    }
+
+    // appends a chunk to its stream, decoding the
+    // reassembled frame if it was the last chunk
+    private Packet decodeChunk(byte flags, int streamId, ByteBuffer chunk) throws Throwable {
+        ByteBufferPool pool = bufferPool();
+        ByteBuffer stream = openStreams.remove(streamId);
+        if (stream == null) {
+            if (openStreams.size() >= MAX_OPEN_STREAMS)
+                throw new IOException("more than " + MAX_OPEN_STREAMS + " open streams");
+            stream = pool.acquire(2 * CHUNK_SIZE);
+        }
+
+        if (stream.position() + chunk.remaining() > FRAME_HEADER_SIZE + MAX_FRAME_SIZE) {
+            pool.release(stream);
+            throw new IOException("stream " + streamId + " exceeds maximum frame size");
+        }
+
+        // append, growing the buffer if needed
+        streamBuffer.use(stream);
+        try {
+            streamBuffer.writeBytes(chunk);
+        } finally {
+            stream = streamBuffer.buffer();
+            streamBuffer.use(null);
+        }
+
+        if ((flags & FLAG_LAST_CHUNK) == 0) {
+            openStreams.put(streamId, stream);
+            return null;
+        }
+
+        try {
+            return decodeFramed(stream.flip());
+        } finally {
+            pool.release(stream);
+        }
+    }
+
+    // decodes a whole frame, including its header
+    private Packet decodeFramed(ByteBuffer frame) throws Throwable {
+        byte flags = frame.get();
+        if ((flags & FLAG_CHUNK) != 0)
+            throw new IOException("chunk in a chunked frame");
+
+        int typeId;
+        if ((flags & FLAG_COMPACT_ID) != 0) {
+            int b0 = frame.get() & 0xFF;
+            typeId = (b0 & 0x80) == 0 ? b0 : compactId(b0, frame.get() & 0xFF);
+        } else {
+            typeId = frame.getInt();
+        }
+
+        int length = frame.getInt();
+        checkFrameLength(length);
+        if (length != frame.remaining())
+            throw new IOException("chunked frame of " + frame.remaining() + " bytes has length " + length);
+        return decodeFrame(flags, typeId, frame);
+    }
+
+    /**
+     * Should be called by the transport when the
+     * connection ended, either cleanly or with an error.
+     * @param t The error or null.
+     */
+    protected void onDisconnected(Throwable t) {
+        active.set(false);
+        HashedWheelTimer.Timeout check = idleCheck;
+        if (check != null)
+            check.cancel();
+        if (disconnectHandler != null)
+            disconnectHandler.accept(t);
+
+        // fail the requests still waiting
+        if (!pendingRequests.isEmpty()) {
+            IOException e = new IOException("connection closed");
+            for (CompletableFuture<Packet> future : pendingRequests.values())
+                future.completeExceptionally(e);
+            pendingRequests.clear();
+        }
+
+        // free the native compression memory
+        synchronized (encoderBuffer) {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+}
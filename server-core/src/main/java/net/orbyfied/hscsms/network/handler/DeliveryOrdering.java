@@ -0,0 +1,50 @@
+package net.orbyfied.hscsms.network.handler;
+
+/**
+ * How packets received by connections are delivered
+ * to the handler they delegate to, and which of them
+ * are guaranteed to be handled in the order received.
+ */
+public enum DeliveryOrdering {
+
+    /**
+     * Handle them on the thread of the connection before
+     * it handles them itself, all in order but blocking
+     * the connection while the parent handles them.
+     */
+    SYNCHRONOUS,
+
+    /**
+     * Handle them on the shard of the connection,
+     * the packets of a connection stay in order.
+     */
+    CONNECTION,
+
+    /**
+     * Handle them on the shard of their key, like the
+     * user, the packets with the same key stay in order.
+     */
+    KEY,
+
+    /**
+     * Spread them over all shards, no order is kept.
+     */
+    UNORDERED;
+
+    /**
+     * Parses an ordering from its configuration name,
+     * like "sync", "connection", "key" or "none".
+     * @param name The name.
+     * @return The ordering.
+     */
+    public static DeliveryOrdering parse(String name) {
+        return switch (name.toLowerCase()) {
+            case "sync"        -> SYNCHRONOUS;
+            case "connection"  -> CONNECTION;
+            case "key", "user" -> KEY;
+            case "none"        -> UNORDERED;
+            default -> throw new IllegalArgumentException("unknown delivery ordering '" + name + "'");
+        };
+    }
+
+}
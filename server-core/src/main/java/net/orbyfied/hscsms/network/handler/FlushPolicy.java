@@ -0,0 +1,62 @@
+package net.orbyfied.hscsms.network.handler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when queued outbound packets of
+ * a connection are flushed to the socket.
+ * @param mode The flush mode.
+ * @param maxLatencyMicros The maximum time a packet may stay
+ *                         queued, for {@link Mode#MAX_LATENCY}.
+ */
+public record FlushPolicy(Mode mode, long maxLatencyMicros) {
+
+    public enum Mode {
+
+        /**
+         * Flush after every packet.
+         */
+        IMMEDIATE,
+
+        /**
+         * Flush once the current batch of work is done,
+         * like handling all packets read at once.
+         */
+        END_OF_BATCH,
+
+        /**
+         * Flush at most the configured amount of
+         * time after the first packet was queued.
+         */
+        MAX_LATENCY
+
+    }
+
+    public static final FlushPolicy IMMEDIATE    = new FlushPolicy(Mode.IMMEDIATE, 0);
+    public static final FlushPolicy END_OF_BATCH = new FlushPolicy(Mode.END_OF_BATCH, 0);
+
+    public static FlushPolicy maxLatency(long micros) {
+        return new FlushPolicy(Mode.MAX_LATENCY, micros);
+    }
+
+    /**
+     * Parses a flush policy from its configuration
+     * name, like "immediate", "end-of-batch" or "max-latency".
+     * @param name The name.
+     * @param maxLatencyMicros The latency window for max-latency.
+     * @return The policy.
+     */
+    public static FlushPolicy parse(String name, long maxLatencyMicros) {
+        return switch (name.toLowerCase()) {
+            case "immediate"    -> IMMEDIATE;
+            case "end-of-batch" -> END_OF_BATCH;
+            case "max-latency"  -> maxLatency(maxLatencyMicros);
+            default -> throw new IllegalArgumentException("unknown flush policy '" + name + "'");
+        };
+    }
+
+    public long maxLatencyNanos() {
+        return TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+    }
+
+}
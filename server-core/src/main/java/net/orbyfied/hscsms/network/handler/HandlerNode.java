@@ -6,20 +6,45 @@ import net.orbyfied.hscsms.network.PacketType;
 import net.orbyfied.j8.util.functional.TriPredicate;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 @SuppressWarnings("rawtypes")
 public class HandlerNode {
 
-    public static class Result {
+    /**
+     * The immutable result of handling a packet.
+     * Use the shared constants to avoid allocating.
+     */
+    public static final class Result {
+
+        public static final Result CONTINUE    = new Result(ChainAction.CONTINUE, NodeAction.KEEP);
+        public static final Result HALT        = new Result(ChainAction.HALT, NodeAction.KEEP);
+        public static final Result REMOVE      = new Result(ChainAction.CONTINUE, NodeAction.REMOVE);
+        public static final Result HALT_REMOVE = new Result(ChainAction.HALT, NodeAction.REMOVE);
+
+        /**
+         * Get the shared result for the actions.
+         * @param chain The chain action.
+         * @param nodeAction The node action.
+         * @return The result.
+         */
+        public static Result of(ChainAction chain, NodeAction nodeAction) {
+            if (chain == ChainAction.HALT)
+                return nodeAction == NodeAction.REMOVE ? HALT_REMOVE : HALT;
+            return nodeAction == NodeAction.REMOVE ? REMOVE : CONTINUE;
+        }
 
-        ChainAction chain;
-        NodeAction nodeAction = NodeAction.KEEP;
+        final ChainAction chain;
+        final NodeAction nodeAction;
 
         public Result(ChainAction chain) {
-            this.chain = chain;
+            this(chain, NodeAction.KEEP);
+        }
+
+        public Result(ChainAction chain, NodeAction nodeAction) {
+            this.chain      = chain;
+            this.nodeAction = nodeAction;
         }
 
         public ChainAction chain() {
@@ -30,9 +55,14 @@ public class HandlerNode {
             return nodeAction;
         }
 
+        /**
+         * Get the result with the node action changed.
+         * Does not modify this result.
+         * @param action The node action.
+         * @return The result.
+         */
         public Result nodeAction(NodeAction action) {
-            this.nodeAction = action;
-            return this;
+            return of(chain, action);
         }
 
     }
@@ -43,6 +73,21 @@ public class HandlerNode {
 
     }
 
+    /*
+        The children and handlers are compiled into
+        immutable arrays, rebuilt when they change, so
+        handling reads them without locking or allocating.
+        Type children are indexed by the dense packet type
+        index, predicate children are tested in order.
+     */
+
+    // a compiled dispatch table
+    record Table(HandlerNode[][] byType,
+                 HandlerNode[] predicated) { }
+
+    static final Table EMPTY_TABLE = new Table(new HandlerNode[0][], new HandlerNode[0]);
+    static final Handler[] EMPTY_HANDLERS = new Handler[0];
+
     ///////////////////////////////
 
     public HandlerNode(HandlerNode parent) {
@@ -53,9 +98,10 @@ public class HandlerNode {
     final HandlerNode parent;
 
     // the children of this node
-    List<HandlerNode> children = new ArrayList<>();
-    Map<PacketType<? extends Packet>, HandlerNode> childDirectPredicateType
-            = new HashMap<>();
+    // modified under the node lock
+    final List<HandlerNode> children = new ArrayList<>();
+    // the compiled children
+    volatile Table table = EMPTY_TABLE;
 
     // the predicate
     TriPredicate<NetworkHandler, HandlerNode, Packet> predicate;
@@ -63,13 +109,13 @@ public class HandlerNode {
     // can be mapped instantly
     PacketType<? extends Packet> directPredicateType;
 
-    // the handler
-    List<Handler<? extends Packet>> handlers = new ArrayList<>();
+    // the handlers, copied on write
+    volatile Handler[] handlers = EMPTY_HANDLERS;
 
     public HandlerNode childWhen(TriPredicate<NetworkHandler, HandlerNode, Packet> predicate) {
         HandlerNode node = new HandlerNode(this);
         node.predicate = predicate;
-        children.add(node);
+        addChild(node);
         return node;
     }
 
@@ -77,59 +123,116 @@ public class HandlerNode {
         HandlerNode node = new HandlerNode(this);
         node.directPredicateType = type;
         node.predicate = (handler, node1, packet) -> packet.type() == type;
-        children.add(node);
-        childDirectPredicateType.put(type, node);
+        addChild(node);
         return node;
     }
 
-    public <P extends Packet> HandlerNode withHandler(Handler<P> handler) {
-        handlers.add(handler);
+    public synchronized <P extends Packet> HandlerNode withHandler(Handler<P> handler) {
+        Handler[] newHandlers = Arrays.copyOf(handlers, handlers.length + 1);
+        newHandlers[handlers.length] = handler;
+        handlers = newHandlers;
         return this;
     }
 
     public void remove() {
         // remove node from parent
         if (parent != null) {
-            parent.children.remove(this);
-            if (directPredicateType != null) {
-                parent.childDirectPredicateType.remove(directPredicateType);
+            parent.removeChild(this);
+        }
+    }
+
+    private synchronized void addChild(HandlerNode node) {
+        children.add(node);
+        compile();
+    }
+
+    private synchronized void removeChild(HandlerNode node) {
+        if (children.remove(node))
+            compile();
+    }
+
+    // rebuilds the dispatch table from the children
+    private void compile() {
+        int maxIndex = -1;
+        List<HandlerNode> predicated = new ArrayList<>();
+        for (HandlerNode node : children) {
+            if (node.directPredicateType != null) {
+                maxIndex = Math.max(maxIndex, node.directPredicateType.index());
+            } else {
+                predicated.add(node);
+            }
+        }
+
+        HandlerNode[][] byType = new HandlerNode[maxIndex + 1][];
+        for (HandlerNode node : children) {
+            if (node.directPredicateType == null)
+                continue;
+            int index = node.directPredicateType.index();
+            HandlerNode[] nodes = byType[index];
+            if (nodes == null) {
+                nodes = new HandlerNode[] { node };
+            } else {
+                nodes = Arrays.copyOf(nodes, nodes.length + 1);
+                nodes[nodes.length - 1] = node;
             }
+
+            byType[index] = nodes;
         }
+
+        table = new Table(byType, predicated.toArray(new HandlerNode[0]));
     }
 
     @SuppressWarnings("unchecked")
     public Result handle(NetworkHandler handler, Packet packet) {
         // check
         if (packet == null)
-            return new Result(ChainAction.HALT);
+            return Result.HALT;
 
         // temp result
         Result result;
 
-        // call these handlers
+        // call these handlers, removing this node
+        // before halting so it is removed either way
         for (Handler h : handlers) {
-            if ((result = h.handle(handler, this, packet)).chain() == ChainAction.HALT)
-                return result;
+            result = h.handle(handler, this, packet);
             if (result.nodeAction() == NodeAction.REMOVE)
                 remove();
+            if (result.chain() == ChainAction.HALT)
+                return result;
         }
 
-        // try and get fast mapped children
-        HandlerNode child;
-        if ((child = childDirectPredicateType.get(packet.type())) != null) {
-            if ((result = child.handle(handler, packet)).chain() == ChainAction.HALT)
-                return result;
+        // call the children for the type
+        Table table = this.table;
+        int index = packet.type().index();
+        if (index < table.byType.length) {
+            HandlerNode[] nodes = table.byType[index];
+            if (nodes != null) {
+                for (HandlerNode node : nodes) {
+                    if ((result = node.handle(handler, packet)).chain() == ChainAction.HALT)
+                        return halted(node, result);
+                }
+            }
         }
 
-        // iterate children and call
-        for (HandlerNode node : children) {
+        // test and call the other children
+        for (HandlerNode node : table.predicated) {
             if (node.predicate.test(handler, node, packet))
                 if ((result = node.handle(handler, packet)).chain() == ChainAction.HALT)
-                    return result;
+                    return halted(node, result);
         }
 
         // return
-        return new Result(ChainAction.CONTINUE);
+        return Result.CONTINUE;
+    }
+
+    // the result of a child which halted, the child is
+    // removed if asked to, which is done with the node
+    // action so it does not remove this node as well
+    private static Result halted(HandlerNode child, Result result) {
+        if (result.nodeAction() != NodeAction.REMOVE)
+            return result;
+        child.remove();
+        return Result.HALT;
     }
 
 }
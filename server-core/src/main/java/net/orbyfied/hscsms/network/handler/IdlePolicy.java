@@ -0,0 +1,26 @@
+package net.orbyfied.hscsms.network.handler;
+
+/**
+ * Decides when a connection is considered dead
+ * and how often it is kept alive with heartbeats.
+ * @param readTimeoutMillis The time without receiving anything
+ *                          after which the connection times out,
+ *                          or 0 to never time out.
+ * @param heartbeatIntervalMillis The time without sending anything
+ *                                after which a heartbeat is sent,
+ *                                or 0 to not send heartbeats.
+ */
+public record IdlePolicy(long readTimeoutMillis, long heartbeatIntervalMillis) {
+
+    public static final IdlePolicy DEFAULT = new IdlePolicy(30_000, 10_000);
+
+    public IdlePolicy {
+        if (readTimeoutMillis < 0 || heartbeatIntervalMillis < 0)
+            throw new IllegalArgumentException("idle timeouts can not be negative");
+    }
+
+    public boolean isEnabled() {
+        return readTimeoutMillis > 0 || heartbeatIntervalMillis > 0;
+    }
+
+}
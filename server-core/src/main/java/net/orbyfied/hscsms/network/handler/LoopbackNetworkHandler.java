@@ -0,0 +1,472 @@
+package net.orbyfied.hscsms.network.handler;
+
+import net.orbyfied.hscsms.network.NetworkHandler;
+import net.orbyfied.hscsms.network.NetworkManager;
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketPriority;
+import net.orbyfied.hscsms.security.EncryptionProfile;
+import net.orbyfied.hscsms.service.Logging;
+import net.orbyfied.hscsms.util.worker.SpscRingBuffer;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Network handler connected to another one in the
+ * same process, for embedded clients and benchmarks.
+ * Frames are encoded, encrypted and chunked like on
+ * a socket, but flushing moves the frame buffers into
+ * a lock-free ring of the peer instead of copying them,
+ * where its reader thread decodes and dispatches them.
+ * If the ring of the peer is full, the frames stay in
+ * the outbound queue until the peer read enough.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class LoopbackNetworkHandler extends ConnectionNetworkHandler<LoopbackNetworkHandler> {
+
+    // the default amount of frames the ring holds
+    static final int DEFAULT_RING_CAPACITY = 1024;
+    // the maximum amount of frames read before
+    // flushing, and letting the peer write if it is
+    // waiting for space, when the ring is never empty
+    static final int MAX_READ_BATCH = 64;
+
+    static final AtomicInteger nextId = new AtomicInteger(0);
+
+    /**
+     * The address of a loopback handler.
+     */
+    public static final class LoopbackAddress extends SocketAddress {
+
+        final String name;
+
+        LoopbackAddress(String name) {
+            this.name = name;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return "loopback:" + name;
+        }
+
+    }
+
+    ////////////////////////////////
+
+    // the capacity of the inbound ring
+    int ringCapacity = DEFAULT_RING_CAPACITY;
+
+    // the frames sent by the peer, offered by
+    // its flush and only polled by the reader
+    SpscRingBuffer<ByteBuffer> inbound;
+    // the other end and the address of this one
+    LoopbackNetworkHandler peer;
+    LoopbackAddress address;
+
+    // serializes the flushes, which makes them
+    // a single producer for the ring of the peer
+    final Object writeLock = new Object();
+    // the frame taken from the queue which did
+    // not fit into the ring, guarded by the lock
+    ByteBuffer pendingFrame;
+    // if the last flush stopped because the ring
+    // of the peer was full, the peer flushes this
+    // end again once it read some of it
+    volatile boolean writeBlocked;
+
+    // closing state, the peer may still have frames
+    // to read after the other end closed
+    final AtomicBoolean closed = new AtomicBoolean(false);
+    volatile boolean closing = false;
+    volatile boolean peerClosed = false;
+
+    // the error the connection was aborted with
+    volatile Throwable abortCause;
+
+    // if the reader is about to park or parked
+    volatile boolean waiting;
+
+    public LoopbackNetworkHandler(final NetworkManager manager,
+                                  final NetworkHandler parent) {
+        super(manager, parent);
+    }
+
+    public LoopbackNetworkHandler withRingCapacity(int capacity) {
+        this.ringCapacity = capacity;
+        return this;
+    }
+
+    /**
+     * Links this handler and the peer with each
+     * other. Both have to be started to read.
+     * @param peer The other end.
+     * @return This.
+     */
+    public LoopbackNetworkHandler connect(LoopbackNetworkHandler peer) {
+        if (this.peer != null || peer.peer != null)
+            throw new IllegalStateException("loopback handler already connected");
+        if (peer == this)
+            throw new IllegalArgumentException("can not connect a loopback handler to itself");
+
+        int id = nextId.incrementAndGet();
+        this.link(peer, new LoopbackAddress(id + "a"));
+        peer.link(this, new LoopbackAddress(id + "b"));
+        return this;
+    }
+
+    private void link(LoopbackNetworkHandler peer, LoopbackAddress address) {
+        this.inbound = new SpscRingBuffer<>(ringCapacity);
+        this.address = address;
+        this.peer    = peer;
+    }
+
+    public LoopbackNetworkHandler peer() {
+        return peer;
+    }
+
+    public LoopbackAddress getLocalAddress() {
+        return address;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        if (peer == null)
+            return null;
+        return peer.address;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return peer != null && !closed.get() && !peerClosed;
+    }
+
+    @Override
+    public LoopbackNetworkHandler fatalClose() {
+        shutdown();
+        return this;
+    }
+
+    @Override
+    public LoopbackNetworkHandler stop() {
+        super.stop();
+        wakeUp();
+        return this;
+    }
+
+    @Override
+    public void abort(Throwable t) {
+        abortCause = t;
+        outbound.clear();
+        shutdown();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (peer == null || closing)
+            return;
+
+        // write what is left, finishes closing once
+        // the peer took all of it into its ring
+        closing = true;
+        flush();
+    }
+
+    // closes this end, the peer reads
+    // the frames left in its ring
+    private void shutdown() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        if (peer != null)
+            peer.onPeerClosed();
+        wakeUp();
+    }
+
+    // called by the peer when it closed
+    void onPeerClosed() {
+        peerClosed = true;
+        wakeUp();
+    }
+
+    // unparks the reader if it is waiting
+    void wakeUp() {
+        if (!waiting || workerThread == null)
+            return;
+        Thread thread = workerThread.getThread();
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /* ---- Sending ---- */
+
+    // encodes the packet and queues it for writing
+    private synchronized void enqueue(Packet packet, EncryptionProfile encryption) throws Throwable {
+        addFrame(encodeFrame(packet, encryption), packet.type().priority());
+    }
+
+    // check if the current thread is the reader
+    private boolean onReaderThread() {
+        return workerThread != null && Thread.currentThread() == workerThread.getThread();
+    }
+
+    @Override
+    protected boolean canBlockSender() {
+        // the reader frees the ring of the peer,
+        // which may be waiting for this one
+        return !onReaderThread();
+    }
+
+    @Override
+    protected void queueFrame(ByteBuffer frame, PacketPriority priority) {
+        synchronized (this) {
+            addFrame(frame, priority);
+        }
+
+        onQueued();
+    }
+
+    // flushes according to the flush policy, flushing
+    // only moves buffers, so there is nothing to gain
+    // from waiting for the max latency
+    private void onQueued() {
+        if (flushPolicy.mode() == FlushPolicy.Mode.IMMEDIATE) {
+            flush();
+        } else if (!onReaderThread() && !inDispatcher()) {
+            // the reader or dispatcher flushes once
+            // it handled all the packets it has
+            flush();
+        }
+    }
+
+    @Override
+    public LoopbackNetworkHandler flush() {
+        LoopbackNetworkHandler peer = this.peer;
+        if (peer == null)
+            return this;
+
+        boolean moved = false;
+        synchronized (writeLock) {
+            if (closed.get() || peer.closed.get()) {
+                // nobody is going to read them
+                discardQueued();
+                return this;
+            }
+
+            ByteBuffer frame = pendingFrame;
+            pendingFrame = null;
+            if (frame == null)
+                frame = outbound.poll();
+            while (frame != null) {
+                if (!peer.inbound.offer(frame)) {
+                    // wait for the peer to read
+                    pendingFrame = frame;
+                    break;
+                }
+
+                outbound.written(frame);
+                moved = true;
+                frame = outbound.poll();
+            }
+
+            writeBlocked = pendingFrame != null;
+        }
+
+        if (moved) {
+            // make the frames visible before
+            // checking if the reader is parked
+            VarHandle.fullFence();
+            peer.wakeUp();
+        }
+
+        if (closing && !writeBlocked && outbound.isEmpty())
+            shutdown();
+        return this;
+    }
+
+    // releases the frames which can not be written anymore
+    private void discardQueued() {
+        if (pendingFrame != null) {
+            outbound.written(pendingFrame);
+            bufferPool().release(pendingFrame);
+            pendingFrame = null;
+        }
+
+        ByteBuffer frame;
+        while ((frame = outbound.poll()) != null) {
+            outbound.written(frame);
+            bufferPool().release(frame);
+        }
+
+        writeBlocked = false;
+    }
+
+    public LoopbackNetworkHandler sendSyncRaw(Packet packet) {
+        return sendSyncEncrypted(packet, null);
+    }
+
+    public CompletableFuture<LoopbackNetworkHandler> sendAsyncRaw(Packet packet) {
+        return CompletableFuture.completedFuture(sendSyncRaw(packet));
+    }
+
+    @Override
+    protected boolean queuePacket(Packet packet, EncryptionProfile encryption) throws Throwable {
+        if (!isOpen() || !admit(packet.type()))
+            return false;
+
+        enqueue(packet, encryption);
+        onQueued();
+        return true;
+    }
+
+    public LoopbackNetworkHandler sendSyncEncrypted(Packet packet, EncryptionProfile encryption) {
+        try {
+            queuePacket(packet, encryption);
+        } catch (Throwable t) {
+            t.printStackTrace(Logging.ERR);
+        }
+
+        return this;
+    }
+
+    public CompletableFuture<LoopbackNetworkHandler> sendAsyncEncrypted(Packet packet, EncryptionProfile encryption) {
+        // flushing does not block, so there
+        // is no point in a sender thread
+        return CompletableFuture.completedFuture(sendSyncEncrypted(packet, encryption));
+    }
+
+    /* ---- Dispatch ---- */
+
+    @Override
+    protected void onDispatchDrained() {
+        wakeUp();
+    }
+
+    // parks the reader while the dispatcher is saturated
+    // so a slow handler pauses reading instead of queueing,
+    // or until the barrier packet read last was handled
+    private void awaitDispatcher() {
+        if (!shouldPauseReading())
+            return;
+
+        // write responses before waiting
+        flush();
+
+        waiting = true;
+        try {
+            while (!canResumeReading() && active.get() && !closed.get())
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+        } finally {
+            waiting = false;
+        }
+    }
+
+    @Override
+    protected void delayReading(long nanos) {
+        // write responses before waiting
+        flush();
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // decodes a frame taken from the ring
+    private Packet decode(ByteBuffer frame) throws Throwable {
+        byte flags = frame.get();
+        int typeId;
+        if ((flags & FLAG_COMPACT_ID) != 0) {
+            int b0 = frame.get() & 0xFF;
+            typeId = (b0 & 0x80) == 0 ? b0 : compactId(b0, frame.get() & 0xFF);
+        } else {
+            typeId = frame.getInt();
+        }
+
+        int length = frame.getInt();
+        checkFrameLength(length);
+        if (length != frame.remaining())
+            throw new IOException("frame of " + frame.remaining() + " bytes has length " + length);
+        return decodeFrame(flags, typeId, frame);
+    }
+
+    @Override
+    protected NetworkHandler.WorkerThread createWorkerThread() {
+        return new LoopbackWorkerThread();
+    }
+
+    /* ---- Worker ---- */
+
+    class LoopbackWorkerThread extends WorkerThread {
+
+        @Override
+        public void runSafe() throws Throwable {
+            Throwable t = null;
+            int read = 0;
+
+            // main network loop
+            try {
+                while (active.get() && !closed.get()) {
+                    ByteBuffer frame = inbound.poll();
+                    if (frame == null) {
+                        // end of batch, write responses and
+                        // let the peer write what it has left
+                        flush();
+                        if (peer.writeBlocked)
+                            peer.flush();
+                        if (!inbound.isEmpty())
+                            continue;
+                        if (peerClosed)
+                            break;
+
+                        waiting = true;
+                        if (inbound.isEmpty() && !peerClosed && !closed.get() && active.get())
+                            LockSupport.park(this);
+                        waiting = false;
+                        continue;
+                    }
+
+                    Packet packet;
+                    try {
+                        packet = decode(frame);
+                    } finally {
+                        bufferPool().release(frame);
+                    }
+
+                    // end a long batch
+                    if (++read % MAX_READ_BATCH == 0) {
+                        flush();
+                        if (peer.writeBlocked)
+                            peer.flush();
+                    }
+
+                    // handle packet
+                    if (packet != null)
+                        LoopbackNetworkHandler.this.dispatch(packet);
+                    awaitDispatcher();
+                }
+            } catch (Throwable t1) {
+                t = t1;
+            }
+
+            // close this end, dropping what is left
+            shutdown();
+            ByteBuffer frame;
+            while ((frame = inbound.poll()) != null)
+                bufferPool().release(frame);
+
+            onDisconnected(abortCause != null ? abortCause : t);
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+package net.orbyfied.hscsms.network.handler;
+
+import net.orbyfied.hscsms.service.Logging;
+import net.orbyfied.hscsms.util.worker.SafeWorker;
+import net.orbyfied.j8.util.logging.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single selector driven event loop, which
+ * performs the reading and writing for all the
+ * {@link NioNetworkHandler}s registered to it.
+ */
+public class NioEventLoop {
+
+    private static final Logger LOGGER = Logging.getLogger("NioEventLoop");
+
+    // the group this loop is in
+    final NioEventLoopGroup group;
+
+    // the selector
+    final Selector selector;
+    // the tasks to run on the loop thread
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // a task to run at a point in time
+    record ScheduledTask(long deadline, Runnable task) implements Comparable<ScheduledTask> {
+        @Override
+        public int compareTo(ScheduledTask o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    // the delayed tasks, only accessed by the loop
+    final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+    // the handlers to flush at the end of
+    // the iteration, only accessed by the loop
+    final ArrayDeque<NioNetworkHandler> flushQueue = new ArrayDeque<>();
+
+    // the worker thread
+    final SafeWorker worker;
+
+    public NioEventLoop(NioEventLoopGroup group, String name) throws IOException {
+        this.group    = group;
+        this.selector = Selector.open();
+        this.worker   = new SafeWorker(name)
+                .withTarget(this::run);
+        this.worker.setDaemon(true);
+    }
+
+    public NioEventLoopGroup group() {
+        return group;
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Check if the current thread is
+     * the thread of this event loop.
+     * @return If it is.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == worker;
+    }
+
+    /**
+     * Runs the task on the loop thread, directly
+     * if called from it, otherwise by queueing it
+     * and waking up the selector.
+     * @param task The task.
+     */
+    public void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread after
+     * the given delay has passed.
+     * @param task The task.
+     * @param delayNanos The delay in nanoseconds.
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        final ScheduledTask scheduledTask = new ScheduledTask(System.nanoTime() + delayNanos, task);
+        execute(() -> scheduledTasks.add(scheduledTask));
+    }
+
+    /**
+     * Flushes the handler once the current iteration
+     * of the loop is done. Must be called on the loop.
+     * @param handler The handler.
+     */
+    void flushAtEndOfBatch(NioNetworkHandler handler) {
+        if (!handler.inFlushQueue) {
+            handler.inFlushQueue = true;
+            flushQueue.add(handler);
+        }
+    }
+
+    public NioEventLoop start() {
+        worker.commence();
+        return this;
+    }
+
+    public void shutdown() {
+        worker.setActive(false);
+        selector.wakeup();
+    }
+
+    /* ---- Loop ---- */
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOGGER.err(worker.getName() + ": Error while running task");
+                t.printStackTrace(Logging.ERR);
+            }
+        }
+    }
+
+    private void runScheduledTasks() {
+        long now = System.nanoTime();
+        ScheduledTask scheduledTask;
+        while ((scheduledTask = scheduledTasks.peek()) != null && scheduledTask.deadline - now <= 0) {
+            scheduledTasks.poll();
+            try {
+                scheduledTask.task.run();
+            } catch (Throwable t) {
+                LOGGER.err(worker.getName() + ": Error while running scheduled task");
+                t.printStackTrace(Logging.ERR);
+            }
+        }
+    }
+
+    private void flushBatch() {
+        NioNetworkHandler handler;
+        while ((handler = flushQueue.poll()) != null) {
+            handler.inFlushQueue = false;
+            handler.flushNow();
+        }
+    }
+
+    // wait for io or until the next delayed task is due
+    private void select() throws IOException {
+        if (!tasks.isEmpty()) {
+            selector.selectNow();
+            return;
+        }
+
+        ScheduledTask next = scheduledTasks.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+
+        long waitNanos = next.deadline - System.nanoTime();
+        if (waitNanos <= 0) {
+            selector.selectNow();
+        } else {
+            // sub-millisecond waits are rounded up
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+        }
+    }
+
+    private void run() throws Throwable {
+        try {
+            while (worker.shouldRun()) {
+                // wait for io
+                select();
+
+                // run queued tasks first, as they
+                // might register new channels
+                runTasks();
+                runScheduledTasks();
+
+                // process ready keys
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    NioNetworkHandler handler = (NioNetworkHandler) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            handler.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            handler.onWritable();
+                    } catch (Throwable t) {
+                        // close the handler with the
+                        // error, keep the loop running
+                        handler.closeWithError(t);
+                    }
+                }
+
+                // write what was queued while
+                // handling this iteration
+                flushBatch();
+            }
+        } catch (ClosedSelectorException ignored) {
+            // closed externally
+        }
+
+        // close all remaining channels
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioNetworkHandler handler) {
+                handler.closeWithError(null);
+            }
+        }
+
+        selector.close();
+    }
+
+}
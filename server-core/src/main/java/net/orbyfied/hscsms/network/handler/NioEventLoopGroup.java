@@ -0,0 +1,68 @@
+package net.orbyfied.hscsms.network.handler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed size group of {@link NioEventLoop}s,
+ * channels are distributed over the loops round-robin.
+ */
+public class NioEventLoopGroup {
+
+    /**
+     * The default amount of loops, one per core.
+     */
+    public static int defaultLoopCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    ///////////////////////////////////
+
+    // the event loops
+    final NioEventLoop[] loops;
+    // the index of the next loop to assign
+    final AtomicInteger next = new AtomicInteger();
+
+    public NioEventLoopGroup(String name, int count) {
+        if (count <= 0)
+            count = defaultLoopCount();
+        loops = new NioEventLoop[count];
+
+        try {
+            for (int i = 0; i < count; i++)
+                loops[i] = new NioEventLoop(this, name + "-" + i);
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to open selector", e);
+        }
+    }
+
+    public NioEventLoopGroup(String name) {
+        this(name, defaultLoopCount());
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * Get the next event loop to assign
+     * a channel to.
+     * @return The event loop.
+     */
+    public NioEventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    public NioEventLoopGroup start() {
+        for (NioEventLoop loop : loops)
+            loop.start();
+        return this;
+    }
+
+    public void shutdown() {
+        for (NioEventLoop loop : loops)
+            loop.shutdown();
+    }
+
+}
@@ -0,0 +1,499 @@
+package net.orbyfied.hscsms.network.handler;
+
+import net.orbyfied.hscsms.network.NetworkHandler;
+import net.orbyfied.hscsms.network.NetworkManager;
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketPriority;
+import net.orbyfied.hscsms.security.EncryptionProfile;
+import net.orbyfied.hscsms.service.Logging;
+
+import java.io.*;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Network handler for non-blocking socket channels.
+ * Does not own any threads, all reading and writing
+ * is done by the {@link NioEventLoop} it is assigned to.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class NioNetworkHandler extends ConnectionNetworkHandler<NioNetworkHandler> {
+
+    // the size of the read buffer
+    static final int READ_BUFFER_SIZE = 2048;
+    // the maximum amount of frames and bytes per gathering
+    // write, so frames of higher priorities queued in the
+    // meantime do not wait for a large batch
+    static final int MAX_WRITE_BATCH = 64;
+    static final int MAX_WRITE_BATCH_BYTES = 64 * 1024;
+
+    // the socket channel
+    SocketChannel channel;
+    // the remote address, cached
+    SocketAddress remoteAddress;
+
+    // the event loop and selection key
+    NioEventLoop loop;
+    SelectionKey key;
+
+    // the buffer of received bytes, taken from the pool
+    // while a frame is partially received, otherwise null
+    // only accessed by the event loop
+    ByteBuffer readBuffer;
+    // if reading is paused because the dispatcher
+    // is saturated or by a rate limit, loop only
+    boolean readPaused = false;
+    // the time reading is delayed until by
+    // a rate limit, if readDelayed is set
+    boolean readDelayed = false;
+    long delayedUntil;
+    // if the loop is decoding the read buffer, which
+    // then releases it itself if closed meanwhile
+    boolean decoding = false;
+
+    // if a flush is scheduled on the loop
+    final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // if it is in the flush queue of the loop
+    boolean inFlushQueue = false;
+
+    // the frames being written, taken from the queue
+    // only accessed by the event loop
+    final ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
+    int writeBatchSize = 0;
+
+    // closing state
+    final AtomicBoolean closed = new AtomicBoolean(false);
+    volatile boolean closing = false;
+
+    public NioNetworkHandler(final NetworkManager manager,
+                             final NetworkHandler parent) {
+        super(manager, parent);
+    }
+
+    public NioNetworkHandler connect(NioEventLoop loop, SocketChannel channel) {
+        this.loop    = loop;
+        this.channel = channel;
+
+        try {
+            channel.configureBlocking(false);
+            remoteAddress = channel.getRemoteAddress();
+        } catch (Exception e) {
+            fatalClose();
+            LOGGER.err("Error while connecting");
+            e.printStackTrace(Logging.ERR);
+        }
+
+        return this;
+    }
+
+    public NioNetworkHandler connect(NioEventLoopGroup group, SocketChannel channel) {
+        return connect(group.next(), channel);
+    }
+
+    @Override
+    public NioNetworkHandler start() {
+        setupDispatcher();
+        startIdleMonitor();
+        active.set(true);
+
+        // register to the selector on the loop
+        loop.execute(() -> {
+            try {
+                key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+                // write what was queued before registering
+                writeQueued();
+            } catch (Throwable t) {
+                closeWithError(t);
+            }
+        });
+
+        return this;
+    }
+
+    @Override
+    protected WorkerThread createWorkerThread() {
+        // io is done by the event loop
+        return null;
+    }
+
+    @Override
+    public NioNetworkHandler fatalClose() {
+        try {
+            if (key != null) key.cancel();
+            if (channel != null) channel.close();
+        } catch (Throwable e) {
+            e.printStackTrace(Logging.ERR);
+        }
+
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get() && channel != null && channel.isOpen();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Closes the connection after writing
+     * the packets queued so far.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        loop.execute(this::flushNow);
+    }
+
+    @Override
+    public void abort(Throwable t) {
+        closeWithError(t);
+    }
+
+    /**
+     * Closes the channel immediately and calls
+     * the disconnect handler once.
+     * @param t The error or null.
+     */
+    void closeWithError(Throwable t) {
+        if (!closed.compareAndSet(false, true))
+            return;
+        fatalClose();
+
+        // drop queued frames, not released to the pool
+        // as the event loop might still be writing one
+        outbound.clear();
+
+        // give the read buffer back, which is kept
+        // while reading is paused or a frame partial
+        loop.execute(this::releaseClosedReadBuffer);
+
+        onDisconnected(t);
+    }
+
+    /* ---- Sending ---- */
+
+    @Override
+    protected boolean canBlockSender() {
+        // the loop writes the queue
+        return !loop.inEventLoop();
+    }
+
+    // encodes the packet and queues it for writing
+    private synchronized void enqueue(Packet packet, EncryptionProfile encryption) throws Throwable {
+        addFrame(encodeFrame(packet, encryption), packet.type().priority());
+    }
+
+    @Override
+    protected void queueFrame(ByteBuffer frame, PacketPriority priority) {
+        synchronized (this) {
+            addFrame(frame, priority);
+        }
+
+        onQueued();
+    }
+
+    // flushes according to the flush policy
+    private void onQueued() {
+        switch (flushPolicy.mode()) {
+            case IMMEDIATE -> flush();
+            case END_OF_BATCH -> {
+                if (loop.inEventLoop()) {
+                    loop.flushAtEndOfBatch(this);
+                } else if (!inDispatcher()) {
+                    // the dispatcher flushes after its batch
+                    flush();
+                }
+            }
+            case MAX_LATENCY -> {
+                if (flushScheduled.compareAndSet(false, true)) {
+                    loop.schedule(() -> {
+                        flushScheduled.set(false);
+                        flushNow();
+                    }, flushPolicy.maxLatencyNanos());
+                }
+            }
+        }
+    }
+
+    @Override
+    public NioNetworkHandler flush() {
+        if (loop.inEventLoop()) {
+            flushNow();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            // packets queued until the task
+            // runs are written with it
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flushNow();
+            });
+        }
+
+        return this;
+    }
+
+    public NioNetworkHandler sendSyncRaw(Packet packet) {
+        return sendSyncEncrypted(packet, null);
+    }
+
+    public CompletableFuture<NioNetworkHandler> sendAsyncRaw(Packet packet) {
+        return CompletableFuture.completedFuture(sendSyncRaw(packet));
+    }
+
+    @Override
+    protected boolean queuePacket(Packet packet, EncryptionProfile encryption) throws Throwable {
+        if (closed.get() || !admit(packet.type()))
+            return false;
+
+        enqueue(packet, encryption);
+        onQueued();
+        return true;
+    }
+
+    public NioNetworkHandler sendSyncEncrypted(Packet packet, EncryptionProfile encryption) {
+        try {
+            queuePacket(packet, encryption);
+        } catch (Throwable t) {
+            t.printStackTrace(Logging.ERR);
+        }
+
+        return this;
+    }
+
+    public CompletableFuture<NioNetworkHandler> sendAsyncEncrypted(Packet packet, EncryptionProfile encryption) {
+        return CompletableFuture.completedFuture(sendSyncEncrypted(packet, encryption));
+    }
+
+    /* ---- Dispatch ---- */
+
+    @Override
+    protected void onDispatchDrained() {
+        loop.execute(this::resumeReading);
+    }
+
+    @Override
+    protected void delayReading(long nanos) {
+        // called on the loop while decoding
+        readPaused   = true;
+        readDelayed  = true;
+        delayedUntil = System.nanoTime() + nanos;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        loop.schedule(this::resumeReading, nanos);
+    }
+
+    // continues reading after it was paused, decoding
+    // the frames which are already buffered first
+    private void resumeReading() {
+        if (!readPaused || closed.get())
+            return;
+        if (readDelayed && System.nanoTime() - delayedUntil < 0)
+            return;
+        readPaused  = false;
+        readDelayed = false;
+
+        try {
+            if (readBuffer != null)
+                decodeFrames();
+            if (!readPaused && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } catch (Throwable t) {
+            closeWithError(t);
+        }
+    }
+
+    /* ---- Event Loop ---- */
+
+    // writes the queue on the event loop
+    void flushNow() {
+        try {
+            writeQueued();
+        } catch (Throwable t) {
+            closeWithError(t);
+        }
+    }
+
+    // writes as much of the queue as the socket
+    // accepts, using gathering writes of many frames
+    void writeQueued() throws IOException {
+        if (key == null || closed.get())
+            return;
+
+        while (true) {
+            // fill up the batch from the queue
+            int batchBytes = 0;
+            for (int i = 0; i < writeBatchSize; i++)
+                batchBytes += writeBatch[i].remaining();
+            ByteBuffer buf;
+            while (writeBatchSize < MAX_WRITE_BATCH && batchBytes < MAX_WRITE_BATCH_BYTES &&
+                    (buf = outbound.poll()) != null) {
+                writeBatch[writeBatchSize++] = buf;
+                batchBytes += buf.remaining();
+            }
+
+            if (writeBatchSize == 0)
+                break;
+
+            channel.write(writeBatch, 0, writeBatchSize);
+
+            // release the written frames
+            int written = 0;
+            while (written < writeBatchSize && !writeBatch[written].hasRemaining()) {
+                outbound.written(writeBatch[written]);
+                bufferPool().release(writeBatch[written++]);
+            }
+
+            System.arraycopy(writeBatch, written, writeBatch, 0, writeBatchSize - written);
+            for (int i = writeBatchSize - written; i < writeBatchSize; i++)
+                writeBatch[i] = null;
+            writeBatchSize -= written;
+
+            if (writeBatchSize != 0) {
+                // socket buffer full, wait until writable
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        // everything written
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (closing)
+            closeWithError(null);
+    }
+
+    void onWritable() throws IOException {
+        writeQueued();
+    }
+
+    void onReadable() throws Throwable {
+        if (readBuffer == null)
+            readBuffer = bufferPool().acquire(READ_BUFFER_SIZE);
+
+        // read available bytes
+        int n = channel.read(readBuffer);
+        if (n == -1) {
+            releaseReadBuffer();
+            closeWithError(null);
+            return;
+        }
+
+        readBuffer.flip();
+        decodeFrames();
+    }
+
+    // decodes all complete frames in the flipped read
+    // buffer, then prepares it for the next read
+    private void decodeFrames() throws Throwable {
+        decoding = true;
+        try {
+            decodeBufferedFrames();
+        } finally {
+            decoding = false;
+        }
+
+        // closed by a handler while decoding
+        if (closed.get())
+            releaseClosedReadBuffer();
+    }
+
+    private void decodeBufferedFrames() throws Throwable {
+        int needed = 0;
+        while (readBuffer.remaining() >= MIN_FRAME_HEADER_SIZE && !closed.get() && !readPaused) {
+            if (shouldPauseReading()) {
+                // pause reading until the dispatcher drained or
+                // the barrier packet was handled, the remaining
+                // frames stay in the buffer
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                break;
+            }
+
+            int start  = readBuffer.position();
+            byte flags = readBuffer.get(start);
+
+            // read the type id
+            int typeId;
+            int headerSize;
+            if ((flags & FLAG_COMPACT_ID) != 0) {
+                int b0 = readBuffer.get(start + 1) & 0xFF;
+                if ((b0 & 0x80) == 0) {
+                    typeId     = b0;
+                    headerSize = FRAME_HEADER_SIZE - 3;
+                } else {
+                    typeId     = compactId(b0, readBuffer.get(start + 2) & 0xFF);
+                    headerSize = FRAME_HEADER_SIZE - 2;
+                }
+            } else {
+                typeId     = readBuffer.getInt(start + 1);
+                headerSize = FRAME_HEADER_SIZE;
+            }
+
+            // wait for the whole header
+            if (readBuffer.remaining() < headerSize)
+                break;
+            int length = readBuffer.getInt(start + headerSize - 4);
+            checkFrameLength(length);
+
+            // wait for the whole frame
+            int frameSize = headerSize + length;
+            if (readBuffer.remaining() < frameSize) {
+                needed = frameSize;
+                break;
+            }
+
+            // decode the payload in place
+            int limit = readBuffer.limit();
+            int end   = start + frameSize;
+            readBuffer.position(start + headerSize).limit(end);
+            Packet packet;
+            try {
+                packet = decodeFrame(flags, typeId, readBuffer);
+            } finally {
+                readBuffer.limit(limit).position(end);
+            }
+
+            // handle packet
+            if (packet != null)
+                dispatch(packet);
+        }
+
+        if (readPaused) {
+            // keep the buffer flipped for resuming
+            return;
+        } else if (!readBuffer.hasRemaining() || closed.get()) {
+            // nothing pending, give the buffer back
+            releaseReadBuffer();
+        } else if (needed > readBuffer.capacity()) {
+            // move the partial frame to a buffer it fits in
+            ByteBuffer newBuffer = bufferPool().acquire(needed);
+            newBuffer.put(readBuffer);
+            bufferPool().release(readBuffer);
+            readBuffer = newBuffer;
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    private void releaseReadBuffer() {
+        bufferPool().release(readBuffer);
+        readBuffer = null;
+    }
+
+    // releases the read buffer of the closed connection,
+    // unless the loop is decoding it, called on the loop
+    private void releaseClosedReadBuffer() {
+        if (readBuffer != null && !decoding)
+            releaseReadBuffer();
+    }
+
+}
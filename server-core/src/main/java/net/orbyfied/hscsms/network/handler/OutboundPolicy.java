@@ -0,0 +1,58 @@
+package net.orbyfied.hscsms.network.handler;
+
+/**
+ * Bounds the bytes queued for writing to a connection
+ * and decides what happens when a peer does not read
+ * fast enough to keep the queue below the bound.
+ * @param highWatermark The queued bytes at which the queue overflows.
+ * @param lowWatermark The queued bytes at which it accepts packets again.
+ * @param overflow What to do with packets sent while overflowed.
+ */
+public record OutboundPolicy(long highWatermark, long lowWatermark, Overflow overflow) {
+
+    public enum Overflow {
+
+        /**
+         * Block the sending thread until the queue
+         * drained to the low watermark. Never blocks
+         * the event loop, which keeps queueing instead.
+         */
+        BLOCK,
+
+        /**
+         * Drop packets of droppable types, disconnect
+         * if a packet which can not be dropped is sent.
+         */
+        DROP,
+
+        /**
+         * Disconnect the peer as a slow consumer.
+         */
+        DISCONNECT
+
+    }
+
+    public static final OutboundPolicy DEFAULT =
+            new OutboundPolicy(4 * 1024 * 1024, 1024 * 1024, Overflow.DISCONNECT);
+
+    public OutboundPolicy {
+        if (lowWatermark < 0 || highWatermark <= lowWatermark)
+            throw new IllegalArgumentException("watermarks must satisfy 0 <= low < high");
+    }
+
+    /**
+     * Parses the overflow action from its configuration
+     * name, like "block", "drop" or "disconnect".
+     * @param name The name.
+     * @return The overflow action.
+     */
+    public static Overflow parseOverflow(String name) {
+        return switch (name.toLowerCase()) {
+            case "block"      -> Overflow.BLOCK;
+            case "drop"       -> Overflow.DROP;
+            case "disconnect" -> Overflow.DISCONNECT;
+            default -> throw new IllegalArgumentException("unknown outbound overflow policy '" + name + "'");
+        };
+    }
+
+}
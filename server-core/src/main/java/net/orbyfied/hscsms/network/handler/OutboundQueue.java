@@ -0,0 +1,187 @@
+package net.orbyfied.hscsms.network.handler;
+
+import net.orbyfied.hscsms.network.PacketPriority;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of encoded frames waiting to be written
+ * to a connection, keeping count of the queued bytes.
+ * Becomes unwritable once the bytes reach the high
+ * watermark and writable again once the transport
+ * wrote enough for them to drop to the low watermark.
+ * Frames are queued by priority and taken with a
+ * weighted round robin, so higher priorities are
+ * written more often without starving lower ones.
+ */
+@SuppressWarnings("unchecked")
+public class OutboundQueue {
+
+    static final PacketPriority[] PRIORITIES = PacketPriority.values();
+
+    // the queued frames by priority
+    final Queue<ByteBuffer>[] lanes = new Queue[PRIORITIES.length];
+    // the frames left to take from each priority
+    // in the current round, only used by the writer
+    final int[] credits = new int[PRIORITIES.length];
+    // the bytes queued or being written
+    final AtomicLong bytes = new AtomicLong(0);
+
+    // the watermarks and overflow action
+    volatile OutboundPolicy policy = OutboundPolicy.DEFAULT;
+    // if the bytes are below the high watermark,
+    // or dropped to the low watermark since
+    volatile boolean writable = true;
+
+    // signalled when it becomes writable again
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition writableAgain = lock.newCondition();
+
+    // the amount of packets dropped
+    final AtomicLong dropped = new AtomicLong(0);
+
+    public OutboundQueue() {
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    public OutboundQueue withPolicy(OutboundPolicy policy) {
+        this.policy = policy;
+        return this;
+    }
+
+    public OutboundPolicy policy() {
+        return policy;
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    void onDropped() {
+        dropped.incrementAndGet();
+    }
+
+    /*
+        Frames are counted by their limit when added
+        and again when written, so the count stays
+        consistent no matter how the header was aligned.
+     */
+
+    /**
+     * Adds a frame to the end of the queue
+     * for the priority.
+     * @param frame The frame.
+     * @param priority The priority.
+     */
+    public void add(ByteBuffer frame, PacketPriority priority) {
+        lanes[priority.ordinal()].add(frame);
+        if (bytes.addAndGet(frame.limit()) >= policy.highWatermark())
+            writable = false;
+    }
+
+    /**
+     * Takes the next frame to write. The bytes are
+     * still counted until it was {@link #written(ByteBuffer)}.
+     * May only be called by one thread at a time.
+     * @return The frame or null if empty.
+     */
+    public ByteBuffer poll() {
+        for (int round = 0; round < 2; round++) {
+            // take from the highest priority with credits left
+            for (int i = 0; i < lanes.length; i++) {
+                if (credits[i] == 0)
+                    continue;
+                ByteBuffer frame = lanes[i].poll();
+                if (frame != null) {
+                    credits[i]--;
+                    return frame;
+                }
+            }
+
+            // all non-empty priorities used up their
+            // credits, start the next round
+            for (int i = 0; i < lanes.length; i++)
+                credits[i] = PRIORITIES[i].weight();
+        }
+
+        return null;
+    }
+
+    public boolean isEmpty() {
+        for (Queue<ByteBuffer> lane : lanes)
+            if (!lane.isEmpty())
+                return false;
+        return true;
+    }
+
+    /**
+     * Should be called by the transport once
+     * a polled frame was written completely.
+     * @param frame The frame.
+     */
+    public void written(ByteBuffer frame) {
+        long remaining = bytes.addAndGet(-frame.limit());
+        if (!writable && remaining <= policy.lowWatermark()) {
+            writable = true;
+            signalWritable();
+        }
+    }
+
+    /**
+     * Drops all queued frames, without releasing them,
+     * and wakes up threads waiting to queue.
+     */
+    public void clear() {
+        for (Queue<ByteBuffer> lane : lanes)
+            lane.clear();
+        bytes.set(0);
+        writable = true;
+        signalWritable();
+    }
+
+    private void signalWritable() {
+        lock.lock();
+        try {
+            writableAgain.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the queue is writable again,
+     * or the timeout elapsed.
+     * @param timeout The timeout in milliseconds.
+     * @return If it is writable.
+     */
+    public boolean awaitWritable(long timeout) throws InterruptedException {
+        if (writable)
+            return true;
+
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!writable && nanos > 0)
+                nanos = writableAgain.awaitNanos(nanos);
+            return writable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package net.orbyfied.hscsms.network.handler;
+
+/**
+ * Limits the rate packets are received at.
+ * @param rate The packets per second allowed on average.
+ * @param burst The packets allowed at once after being idle.
+ * @param action What to do with packets beyond the limit.
+ */
+public record RateLimit(long rate, long burst, Action action) {
+
+    public enum Action {
+
+        /**
+         * Drop the packet without handling it.
+         */
+        DROP,
+
+        /**
+         * Handle the packet but pause reading from
+         * the connection until it is within the limit.
+         */
+        DELAY,
+
+        /**
+         * Disconnect the peer.
+         */
+        DISCONNECT
+
+    }
+
+    public RateLimit {
+        if (rate <= 0 || burst <= 0)
+            throw new IllegalArgumentException("rate and burst must be positive");
+        if (action == null)
+            throw new IllegalArgumentException("rate limit action can not be null");
+    }
+
+    /**
+     * Creates a token bucket enforcing this limit.
+     * @return The bucket.
+     */
+    public TokenBucket newBucket() {
+        return new TokenBucket(rate, burst);
+    }
+
+    /**
+     * Parses the action from its configuration
+     * name, like "drop", "delay" or "disconnect".
+     * @param name The name.
+     * @return The action.
+     */
+    public static Action parseAction(String name) {
+        return switch (name.toLowerCase()) {
+            case "drop"       -> Action.DROP;
+            case "delay"      -> Action.DELAY;
+            case "disconnect" -> Action.DISCONNECT;
+            default -> throw new IllegalArgumentException("unknown rate limit action '" + name + "'");
+        };
+    }
+
+}
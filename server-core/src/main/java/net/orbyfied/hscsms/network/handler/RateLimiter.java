@@ -0,0 +1,210 @@
+package net.orbyfied.hscsms.network.handler;
+
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketType;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate packets are received at, per packet
+ * type and per connection, with a cap over all connections
+ * sharing the limiter. Keeps count of the limited packets.
+ * Every connection gets its own buckets, which are only
+ * used by the thread reading from it.
+ */
+public class RateLimiter {
+
+    // the limit over all connections
+    RateLimit globalLimit;
+    TokenBucket globalBucket;
+    // the limit per connection
+    RateLimit connectionLimit;
+
+    // the limits per connection by packet type
+    // index, copied on write, null if unlimited
+    volatile RateLimit[] typeLimits = new RateLimit[0];
+    volatile LongAdder[] typeCounters = new LongAdder[0];
+
+    // the amount of packets limited by action
+    final LongAdder dropped      = new LongAdder();
+    final LongAdder delayed      = new LongAdder();
+    final LongAdder disconnected = new LongAdder();
+
+    public RateLimiter withGlobalLimit(RateLimit limit) {
+        this.globalLimit  = limit;
+        this.globalBucket = limit != null ? limit.newBucket() : null;
+        return this;
+    }
+
+    public RateLimiter withConnectionLimit(RateLimit limit) {
+        this.connectionLimit = limit;
+        return this;
+    }
+
+    /**
+     * Limits the packets of the type each
+     * connection may send. Only applies to
+     * connections created after.
+     * @param type The packet type.
+     * @param limit The limit or null to remove it.
+     * @return This.
+     */
+    public synchronized RateLimiter withLimit(PacketType<? extends Packet> type, RateLimit limit) {
+        int index = type.index();
+        RateLimit[] limits = typeLimits;
+        LongAdder[] counters = typeCounters;
+        if (index >= limits.length) {
+            limits   = Arrays.copyOf(limits, index + 1);
+            counters = Arrays.copyOf(counters, index + 1);
+        } else {
+            limits   = limits.clone();
+            counters = counters.clone();
+        }
+
+        limits[index] = limit;
+        if (counters[index] == null)
+            counters[index] = new LongAdder();
+        typeCounters = counters;
+        typeLimits   = limits;
+        return this;
+    }
+
+    public RateLimit globalLimit() {
+        return globalLimit;
+    }
+
+    public RateLimit connectionLimit() {
+        return connectionLimit;
+    }
+
+    public RateLimit limitOf(PacketType<? extends Packet> type) {
+        RateLimit[] limits = typeLimits;
+        int index = type.index();
+        return index < limits.length ? limits[index] : null;
+    }
+
+    /**
+     * Creates the buckets of a new connection.
+     * @return The connection limiter.
+     */
+    public ConnectionLimiter newConnection() {
+        return new ConnectionLimiter();
+    }
+
+    /* ---- Counters ---- */
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public long delayedCount() {
+        return delayed.sum();
+    }
+
+    public long disconnectedCount() {
+        return disconnected.sum();
+    }
+
+    /**
+     * Get the amount of packets of the type
+     * which exceeded the limit for the type.
+     * @param type The packet type.
+     * @return The count, 0 if the type is unlimited.
+     */
+    public long limitedCount(PacketType<? extends Packet> type) {
+        LongAdder[] counters = typeCounters;
+        int index = type.index();
+        return index < counters.length && counters[index] != null ? counters[index].sum() : 0;
+    }
+
+    /**
+     * The buckets of a single connection.
+     */
+    public final class ConnectionLimiter {
+
+        // the bucket for all packets
+        final TokenBucket bucket = connectionLimit != null ? connectionLimit.newBucket() : null;
+        // the buckets by packet type index
+        final RateLimit[] limits = typeLimits;
+        final TokenBucket[] buckets = new TokenBucket[limits.length];
+
+        // the time to delay reading for, set when
+        // a packet is limited with the delay action
+        long delayNanos;
+
+        /**
+         * Takes a token for the packet type from all the
+         * buckets limiting it.
+         * @param type The packet type.
+         * @return The action to take or null if it is within all limits.
+         */
+        public RateLimit.Action acquire(PacketType<? extends Packet> type) {
+            long now  = System.nanoTime();
+            long wait = 0;
+
+            // by type
+            int index = type.index();
+            if (index < limits.length && limits[index] != null) {
+                TokenBucket typeBucket = buckets[index];
+                if (typeBucket == null)
+                    buckets[index] = typeBucket = limits[index].newBucket();
+                long typeWait = take(typeBucket, limits[index], now);
+                if (typeWait > 0)
+                    typeCounters[index].increment();
+                if (typeWait > 0 && limits[index].action() != RateLimit.Action.DELAY)
+                    return limited(limits[index].action());
+                wait = typeWait;
+            }
+
+            // by connection
+            if (bucket != null) {
+                long connectionWait = take(bucket, connectionLimit, now);
+                if (connectionWait > 0 && connectionLimit.action() != RateLimit.Action.DELAY)
+                    return limited(connectionLimit.action());
+                wait = Math.max(wait, connectionWait);
+            }
+
+            // over all connections
+            TokenBucket global = globalBucket;
+            if (global != null) {
+                long globalWait = take(global, globalLimit, now);
+                if (globalWait > 0 && globalLimit.action() != RateLimit.Action.DELAY)
+                    return limited(globalLimit.action());
+                wait = Math.max(wait, globalWait);
+            }
+
+            if (wait == 0)
+                return null;
+            delayNanos = wait;
+            return limited(RateLimit.Action.DELAY);
+        }
+
+        /**
+         * Get the time to pause reading for after
+         * a packet was limited with the delay action.
+         * @return The time in nanoseconds.
+         */
+        public long delayNanos() {
+            return delayNanos;
+        }
+
+        // takes a token, borrowing it if the
+        // limited packets are delayed
+        private long take(TokenBucket bucket, RateLimit limit, long now) {
+            return limit.action() == RateLimit.Action.DELAY ? bucket.acquire(now) : bucket.tryAcquire(now);
+        }
+
+        private RateLimit.Action limited(RateLimit.Action action) {
+            switch (action) {
+                case DROP       -> dropped.increment();
+                case DELAY      -> delayed.increment();
+                case DISCONNECT -> disconnected.increment();
+            }
+
+            return action;
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+package net.orbyfied.hscsms.network.handler;
+
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.buffer.ByteBufferPool;
+import net.orbyfied.hscsms.network.buffer.PacketBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * A packet serialized once, to be sent to many
+ * connections. Each connection only encrypts the
+ * shared payload and adds its own frame header.
+ * The payload is compressed once when a connection
+ * first needs it compressed. Must be released after
+ * it was sent to all connections.
+ */
+@SuppressWarnings("rawtypes")
+public final class SerializedPacket {
+
+    /**
+     * Serializes the packet into a pooled buffer.
+     * @param packet The packet.
+     * @param pool The buffer pool.
+     * @return The serialized packet.
+     */
+    public static SerializedPacket of(Packet packet, ByteBufferPool pool) throws Throwable {
+        PacketBuffer buf = new PacketBuffer(pool).use(pool.acquire(ConnectionNetworkHandler.INITIAL_FRAME_BUFFER_SIZE));
+        try {
+            packet.type().serialize(packet, buf);
+        } catch (Throwable t) {
+            pool.release(buf.buffer());
+            throw t;
+        }
+
+        return new SerializedPacket(packet.type(), pool, buf.buffer().flip());
+    }
+
+    // the packet type
+    final PacketType type;
+    // the pool the buffers are from
+    final ByteBufferPool pool;
+    // the serialized packet, never modified
+    final ByteBuffer payload;
+
+    // the compressed payload, null if not
+    // compressed yet or if it did not get smaller
+    ByteBuffer compressed;
+    boolean compressionTried = false;
+
+    private SerializedPacket(PacketType type, ByteBufferPool pool, ByteBuffer payload) {
+        this.type    = type;
+        this.pool    = pool;
+        this.payload = payload;
+    }
+
+    public PacketType type() {
+        return type;
+    }
+
+    public int length() {
+        return payload.remaining();
+    }
+
+    /**
+     * Get a read-only view of the serialized packet.
+     * @return The payload.
+     */
+    public ByteBuffer payload() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    // get an independent view of the payload to read from
+    ByteBuffer plain() {
+        return payload.duplicate();
+    }
+
+    // get an independent view of the compressed payload,
+    // compressing it first if needed, or null if the
+    // payload does not get smaller
+    synchronized ByteBuffer compressed() {
+        if (!compressionTried) {
+            compressionTried = true;
+            Deflater deflater = new Deflater();
+            try {
+                ByteBuffer buf = ConnectionNetworkHandler.compress(deflater, pool, plain(), 0);
+                if (buf != null)
+                    compressed = buf.flip();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        return compressed != null ? compressed.duplicate() : null;
+    }
+
+    /**
+     * Returns the buffers to the pool. The packet
+     * may not be sent anymore after this.
+     */
+    public synchronized void release() {
+        pool.release(payload);
+        pool.release(compressed);
+        compressed = null;
+    }
+
+}
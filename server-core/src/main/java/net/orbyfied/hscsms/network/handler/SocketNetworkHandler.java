@@ -3,85 +3,85 @@ package net.orbyfied.hscsms.network.handler;
 import net.orbyfied.hscsms.network.NetworkHandler;
 import net.orbyfied.hscsms.network.NetworkManager;
 import net.orbyfied.hscsms.network.Packet;
-import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.PacketPriority;
 import net.orbyfied.hscsms.security.EncryptionProfile;
 import net.orbyfied.hscsms.service.Logging;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.function.Consumer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Network handler for socket connections.
  * Bound to a socket will read, write and handle packets.
+ * Can also be bound to a blocking socket channel, like
+ * a unix domain socket, which has no socket to adapt.
  */
 @SuppressWarnings({"unchecked", "rawtypes"})
-public class SocketNetworkHandler extends NetworkHandler<SocketNetworkHandler> {
+public class SocketNetworkHandler extends ConnectionNetworkHandler<SocketNetworkHandler> {
 
-    // async executor service
-    Executor executor = Executors.newSingleThreadExecutor();
+    // the size of the output buffer, queued
+    // frames are gathered in it before flushing
+    static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
 
-    // the socket
+    // async executor service
+    // created on connect with the thread mode
+    ScheduledExecutorService executor;
+
+    // if a flush is scheduled with the max latency policy
+    final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // the flush submitted to the sender, shared by all
+    // packets sent async until it runs, guarded by the queue lock
+    CompletableFuture<SocketNetworkHandler> pendingFlush;
+
+    // guards queueing frames, so they are queued in the
+    // order encoded, a lock instead of a monitor as senders
+    // may be virtual threads which it would pin
+    final ReentrantLock queueLock = new ReentrantLock();
+    // guards writing and flushing the output stream, which
+    // blocks, so virtual threads can unmount while waiting
+    final ReentrantLock writeLock = new ReentrantLock();
+
+    // the error the connection was aborted with
+    volatile Throwable abortCause;
+
+    // signalled when the dispatcher drained enough
+    // for the reader to continue, while it is paused
+    final ReentrantLock dispatchLock = new ReentrantLock();
+    final Condition dispatchDrained = dispatchLock.newCondition();
+
+    // the socket or the channel
     Socket socket;
+    SocketChannel channel;
+    // the remote address of the channel, cached
+    // as it is unavailable once the channel closed
+    SocketAddress remoteAddress;
     // the data streams
     DataInputStream inputStream;
     DataOutputStream outputStream;
 
-    // disconnect handler
-    Consumer<Throwable> disconnectHandler;
-
-    // decryption (and encryption) profile
-    EncryptionProfile encryptionProfile;
-    // if it should automatically write all packets encrypted
-    boolean autoEncrypt;
-
     public SocketNetworkHandler(final NetworkManager manager,
                                 final NetworkHandler parent) {
         super(manager, parent);
     }
 
-    @Override
-    protected void handle(Packet packet) {
-        super.handle(packet);
-
-        // call handler node
-        this.node().handle(this, packet);
-    }
-
-    public SocketNetworkHandler withDisconnectHandler(Consumer<Throwable> consumer) {
-        this.disconnectHandler = consumer;
-        return this;
-    }
-
-    public synchronized SocketNetworkHandler withEncryptionProfile(EncryptionProfile profile) {
-        this.encryptionProfile = profile;
-        return this;
-    }
-
-    public synchronized SocketNetworkHandler autoEncrypt(boolean b) {
-        this.autoEncrypt = b;
-        return this;
-    }
-
-    @Override
-    protected boolean canHandleAsync(Packet packet) {
-        return false;
-    }
-
-    @Override
-    protected void scheduleHandleAsync(Packet packet) {
-        throw new UnsupportedOperationException();
-    }
-
     @Override
     public SocketNetworkHandler fatalClose() {
         try {
             if (inputStream != null) inputStream.close();
             if (outputStream != null) outputStream.close();
             if (socket != null && !socket.isClosed()) socket.close();
+            if (channel != null) channel.close();
         } catch (Throwable e) {
             e.printStackTrace(Logging.ERR);
         }
@@ -91,10 +91,12 @@ public class SocketNetworkHandler extends NetworkHandler<SocketNetworkHandler> {
 
     public SocketNetworkHandler connect(Socket socket) {
         this.socket = socket;
+        if (executor == null)
+            executor = manager.threadMode().newSingleThreadExecutor("NHSender-" + socket.getPort());
 
         try {
             inputStream  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE));
         } catch (Exception e) {
             fatalClose();
             LOGGER.err("Error while connecting");
@@ -104,100 +106,273 @@ public class SocketNetworkHandler extends NetworkHandler<SocketNetworkHandler> {
         return this;
     }
 
-    public SocketNetworkHandler disconnect() {
-        // deactivate worker
-        stop();
+    public SocketNetworkHandler connect(SocketChannel channel) {
+        this.channel = channel;
+        if (executor == null)
+            executor = manager.threadMode().newSingleThreadExecutor("NHSender-" + Integer.toHexString(System.identityHashCode(channel)));
+
+        try {
+            channel.configureBlocking(true);
+            remoteAddress = channel.getRemoteAddress();
+            inputStream  = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            outputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), OUTPUT_BUFFER_SIZE));
+        } catch (Exception e) {
+            fatalClose();
+            LOGGER.err("Error while connecting");
+            e.printStackTrace(Logging.ERR);
+        }
 
-        // return
         return this;
     }
 
-    public SocketNetworkHandler sendSyncRaw(Packet packet) {
-        try {
-            // write packet type
-            outputStream.writeByte(/* unencrypted */ 0);
-            outputStream.writeInt(packet.type().identifier().hashCode());
+    @Override
+    public void abort(Throwable t) {
+        abortCause = t;
+        outbound.clear();
+        fatalClose();
+    }
 
-            // serialize packet
-            packet.type().serializer().serialize(packet.type(), packet, outputStream);
+    @Override
+    public void close() throws IOException {
+        if (socket != null || channel != null) {
+            // write what is left
+            flush();
+            if (socket != null) socket.close();
+            if (channel != null) channel.close();
+        }
+    }
 
-            // flush
-            outputStream.flush();
+    /* ---- Sending ---- */
 
-            // return
-            return this;
-        } catch (Throwable t) {
-            t.printStackTrace(Logging.ERR);
-            return this;
+    // encodes the packet and queues it for writing
+    private void enqueue(Packet packet, EncryptionProfile encryption) throws Throwable {
+        queueLock.lock();
+        try {
+            addFrame(encodeFrame(packet, encryption), packet.type().priority());
+        } finally {
+            queueLock.unlock();
         }
     }
 
-    public CompletableFuture<SocketNetworkHandler> sendAsyncRaw(final Packet packet) {
-        return CompletableFuture.supplyAsync(() -> {
-            sendSyncRaw(packet);
-            return this;
-        }, executor);
+    // check if the current thread is the reader
+    private boolean onReaderThread() {
+        return workerThread != null && Thread.currentThread() == workerThread.getThread();
     }
 
-    public SocketNetworkHandler sendSync(Packet packet) {
-        if (autoEncrypt && encryptionProfile != null) {
-            return sendSyncEncrypted(packet, encryptionProfile);
+    @Override
+    protected void queueFrame(ByteBuffer frame, PacketPriority priority) {
+        queueLock.lock();
+        try {
+            addFrame(frame, priority);
+        } finally {
+            queueLock.unlock();
         }
 
-        return sendSyncRaw(packet);
+        onQueued();
     }
 
-    public CompletableFuture<SocketNetworkHandler> sendAsync(final Packet packet) {
-        return CompletableFuture.supplyAsync(() -> {
-            sendSync(packet);
-            return this;
-        }, executor);
+    // flushes according to the flush policy
+    private void onQueued() {
+        switch (flushPolicy.mode()) {
+            case IMMEDIATE -> flush();
+            case END_OF_BATCH -> {
+                // the reader or dispatcher flushes once
+                // it handled all the packets it has
+                if (!onReaderThread() && !inDispatcher())
+                    flush();
+            }
+            case MAX_LATENCY -> {
+                if (flushScheduled.compareAndSet(false, true)) {
+                    executor.schedule(() -> {
+                        flushScheduled.set(false);
+                        flush();
+                    }, flushPolicy.maxLatencyNanos(), TimeUnit.NANOSECONDS);
+                }
+            }
+        }
     }
 
-    public SocketNetworkHandler sendSyncEncrypted(Packet packet, EncryptionProfile encryption) {
+    // writes all queued frames and flushes once
+    private void writeQueued() throws IOException {
+        if (outputStream == null)
+            return;
+
+        writeLock.lock();
         try {
-            // create output stream
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream stream    = encryption.encryptingOutputStream(baos).toDataStream();
+            boolean wrote = false;
+            ByteBuffer frame;
+            while ((frame = outbound.poll()) != null) {
+                try {
+                    outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                } finally {
+                    outbound.written(frame);
+                    bufferPool().release(frame);
+                }
 
-            // serialize packet
-            packet.type().serializer().serialize(packet.type(), packet, stream);
-            stream.flush();
+                wrote = true;
+            }
 
-            // write packet type unencrypted
-            outputStream.writeByte(/* encrypted */ 1);
-            outputStream.writeInt(packet.type().identifier().hashCode());
+            // flush
+            if (wrote)
+                outputStream.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-            // get encrypted bytes and write
-            byte[] encrypted = baos.toByteArray();
-            outputStream.writeInt(encrypted.length); // write length
-            outputStream.write(encrypted);
+    @Override
+    public SocketNetworkHandler flush() {
+        try {
+            writeQueued();
+        } catch (Throwable t) {
+            t.printStackTrace(Logging.ERR);
+        }
 
-            // flush
-            outputStream.flush();
+        return this;
+    }
 
-            // return
-            return this;
+    public SocketNetworkHandler sendSyncRaw(Packet packet) {
+        return sendSyncEncrypted(packet, null);
+    }
+
+    public CompletableFuture<SocketNetworkHandler> sendAsyncRaw(final Packet packet) {
+        return sendAsyncEncrypted(packet, null);
+    }
+
+    @Override
+    protected boolean queuePacket(Packet packet, EncryptionProfile encryption) throws Throwable {
+        if (!admit(packet.type()))
+            return false;
+
+        // queue packet
+        enqueue(packet, encryption);
+        onQueued();
+        return true;
+    }
+
+    public SocketNetworkHandler sendSyncEncrypted(Packet packet, EncryptionProfile encryption) {
+        try {
+            queuePacket(packet, encryption);
         } catch (Throwable t) {
             t.printStackTrace(Logging.ERR);
-            return this;
         }
+
+        return this;
     }
 
     public CompletableFuture<SocketNetworkHandler> sendAsyncEncrypted(final Packet packet,
                                                                       final EncryptionProfile profile) {
-        return CompletableFuture.supplyAsync(() -> {
-            sendSyncEncrypted(packet, profile);
-            return this;
-        }, executor);
+        if (!admit(packet.type()))
+            return CompletableFuture.completedFuture(this);
+
+        try {
+            enqueue(packet, profile);
+        } catch (Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
+
+        if (flushPolicy.mode() == FlushPolicy.Mode.MAX_LATENCY) {
+            onQueued();
+            return CompletableFuture.completedFuture(this);
+        }
+
+        return scheduleFlush();
+    }
+
+    // submits a flush to the sender unless one is pending,
+    // packets queued until it runs are written with it
+    private CompletableFuture<SocketNetworkHandler> scheduleFlush() {
+        queueLock.lock();
+        try {
+            if (pendingFlush == null) {
+                CompletableFuture<SocketNetworkHandler> future = new CompletableFuture<>();
+                pendingFlush = future;
+                try {
+                    executor.execute(() -> {
+                        queueLock.lock();
+                        try {
+                            pendingFlush = null;
+                        } finally {
+                            queueLock.unlock();
+                        }
+
+                        future.complete(flush());
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the connection ended
+                    pendingFlush = null;
+                    future.completeExceptionally(e);
+                    return future;
+                }
+            }
+
+            return pendingFlush;
+        } finally {
+            queueLock.unlock();
+        }
     }
 
+    @Override
     public boolean isOpen() {
+        if (channel != null)
+            return channel.isOpen();
         if (socket == null)
             return false;
         return !socket.isClosed();
     }
 
+    @Override
+    public SocketAddress getRemoteAddress() {
+        if (channel != null)
+            return remoteAddress;
+        if (socket == null)
+            return null;
+        return socket.getRemoteSocketAddress();
+    }
+
+    /* ---- Dispatch ---- */
+
+    @Override
+    protected void onDispatchDrained() {
+        dispatchLock.lock();
+        try {
+            dispatchDrained.signalAll();
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    // blocks the reader while the dispatcher is saturated
+    // so a slow handler pauses reading instead of queueing,
+    // or until the barrier packet read last was handled
+    private void awaitDispatcher() throws InterruptedException {
+        if (!shouldPauseReading())
+            return;
+
+        // write responses before waiting
+        flush();
+
+        dispatchLock.lock();
+        try {
+            while (!canResumeReading() && active.get() && isOpen())
+                dispatchDrained.await(100, TimeUnit.MILLISECONDS);
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    @Override
+    protected void delayReading(long nanos) {
+        // write responses before waiting
+        flush();
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     protected NetworkHandler.WorkerThread createWorkerThread() {
         return new SocketWorkerThread();
@@ -207,6 +382,10 @@ public class SocketNetworkHandler extends NetworkHandler<SocketNetworkHandler> {
         return socket;
     }
 
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
     /* ---- Worker ---- */
 
     class SocketWorkerThread extends WorkerThread {
@@ -218,49 +397,46 @@ public class SocketNetworkHandler extends NetworkHandler<SocketNetworkHandler> {
 
             // main network loop
             try {
-                while (!socket.isClosed() && active.get()) {
-                    // listen for incoming packets
-                    byte encryptedFlag   = inputStream.readByte();
-                    int packetTypeId = inputStream.readInt();
-                    // get packet type
-                    PacketType<? extends Packet> packetType =
-                            manager.getByHash(packetTypeId);
+                while (isOpen() && active.get()) {
+                    // read frame header
+                    byte flags = inputStream.readByte();
+                    int typeId;
+                    if ((flags & FLAG_COMPACT_ID) != 0) {
+                        int b0 = inputStream.readUnsignedByte();
+                        typeId = (b0 & 0x80) == 0 ? b0 : compactId(b0, inputStream.readUnsignedByte());
+                    } else {
+                        typeId = inputStream.readInt();
+                    }
 
-//                    System.out.println("RECEIVED PACKET id-hash: " + packetTypeId + ", type: "
-//                            + (packetType != null ? packetType.identifier().toString() : "null"));
+                    int length = inputStream.readInt();
+                    checkFrameLength(length);
+
+                    // read whole payload and decode
+                    Packet packet;
+                    ByteBuffer payload = bufferPool().acquire(length);
+                    try {
+                        inputStream.readFully(payload.array(), payload.arrayOffset(), length);
+                        payload.limit(length);
+                        packet = decodeFrame(flags, typeId, payload);
+                    } finally {
+                        bufferPool().release(payload);
+                    }
 
                     // handle packet
-                    if (packetType != null) {
+                    if (packet != null) {
                         // increment packet count
                         pC++;
 
-                        // prepare stream
-                        DataInputStream stream;
-                        if (encryptedFlag == 0) {
-                            // put unencrypted stream
-                            stream = inputStream;
-                        } else {
-                            // check for decryption profile
-                            if (encryptionProfile == null) {
-                                throw new IllegalArgumentException("can not decrypt encrypted packet, no decryption profile set");
-                            }
-
-                            // read encrypted bytes
-                            int dataLen = inputStream.readInt();
-                            byte[] encrypted = inputStream.readNBytes(dataLen);
-
-                            // create encrypted input stream
-                            ByteArrayInputStream bais = new ByteArrayInputStream(encrypted);
-                            stream = encryptionProfile.decryptingInputStream(bais).toDataStream();
-                        }
-
-                        // deserialize
-                        Packet packet = packetType.deserializer()
-                                .deserialize(packetType, stream);
-
                         // handle
-                        SocketNetworkHandler.this.handle(packet);
+                        SocketNetworkHandler.this.dispatch(packet);
                     }
+
+                    awaitDispatcher();
+
+                    // end of batch, write responses
+                    // before blocking on the next read
+                    if (inputStream.available() == 0)
+                        flush();
                 }
             } catch (Throwable t1) {
                 t = t1;
@@ -272,8 +448,14 @@ public class SocketNetworkHandler extends NetworkHandler<SocketNetworkHandler> {
                 ft = t;
             }
 
-            if (disconnectHandler != null)
-                disconnectHandler.accept(ft);
+            if (abortCause != null) {
+                ft = abortCause;
+            }
+
+            onDisconnected(ft);
+
+            // release the sender thread
+            executor.shutdown();
         }
     }
 
@@ -0,0 +1,68 @@
+package net.orbyfied.hscsms.network.handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Lock-free token bucket. Instead of a token count it
+ * keeps the time at which the bucket is full again, so
+ * taking a token is a single compare and swap and
+ * refilling needs no timer. Shared buckets can be used
+ * by any amount of threads.
+ */
+public final class TokenBucket {
+
+    static final AtomicLongFieldUpdater<TokenBucket> FULL_AT =
+            AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "fullAt");
+
+    // the time it takes to refill one token
+    final long refillNanos;
+    // the time it takes to refill the whole bucket
+    final long capacityNanos;
+
+    // the time at which the bucket is full again
+    volatile long fullAt;
+
+    public TokenBucket(long tokensPerSecond, long capacity) {
+        if (tokensPerSecond <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("rate and capacity must be positive");
+        this.refillNanos   = Math.max(1, TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+        this.capacityNanos = refillNanos * capacity;
+        this.fullAt        = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if one is available.
+     * @param now The current time from {@link System#nanoTime()}.
+     * @return 0 if a token was taken, otherwise the
+     *         nanoseconds until one is available.
+     */
+    public long tryAcquire(long now) {
+        for (;;) {
+            long full = fullAt;
+            long next = Math.max(full, now) + refillNanos;
+            long wait = next - now - capacityNanos;
+            if (wait > 0)
+                return wait;
+            if (FULL_AT.compareAndSet(this, full, next))
+                return 0;
+        }
+    }
+
+    /**
+     * Takes a token, borrowing it from the future
+     * if none is available.
+     * @param now The current time from {@link System#nanoTime()}.
+     * @return The nanoseconds to wait until the
+     *         borrowed token would have been available.
+     */
+    public long acquire(long now) {
+        for (;;) {
+            long full = fullAt;
+            long next = Math.max(full, now) + refillNanos;
+            if (FULL_AT.compareAndSet(this, full, next))
+                return Math.max(0, next - now - capacityNanos);
+        }
+    }
+
+}
@@ -3,32 +3,135 @@ package net.orbyfied.hscsms.network.handler;
 import net.orbyfied.hscsms.network.NetworkHandler;
 import net.orbyfied.hscsms.network.NetworkManager;
 import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.service.Logging;
+import net.orbyfied.hscsms.util.worker.MpscQueue;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
 /**
  * Network handler which purpose is solely
  * to handle packets and connections from
  * other handlers which delegate to it.
+ * Runs scheduled tasks on one or more workers,
+ * tasks with the same key always run on the
+ * same worker in the order they were scheduled.
+ * Packets received by the handlers delegating to it
+ * can be delivered to the workers as shards instead of
+ * being handled on the threads reading them, so server
+ * wide handlers never block reading from a connection.
  */
 @SuppressWarnings({"unchecked", "rawtypes"})
 public class UtilityNetworkHandler extends NetworkHandler<UtilityNetworkHandler> {
 
-    // the queue of async tasks
-    Deque<Runnable> tasks = new ArrayDeque<>();
-    // the waiting system
-    Object lock = new Object();
-    AtomicBoolean waiting = new AtomicBoolean(false);
+    // the maximum amount of tasks run before
+    // the worker checks if it should stop
+    static final int MAX_BATCH = 256;
+
+    // the amount of workers
+    int workerCount = 1;
+    // the workers, created when first needed
+    volatile UtilityWorkerThread[] workers;
+
+    // how packets of child handlers are delivered
+    DeliveryOrdering deliveryOrdering = DeliveryOrdering.SYNCHRONOUS;
+    // the key packets are sharded by with the key ordering,
+    // null falls back to the handler which received it
+    Function<NetworkHandler, Object> shardKey = child -> child;
+    // the next worker for unordered packets
+    final AtomicInteger nextWorker = new AtomicInteger(0);
 
     public UtilityNetworkHandler(NetworkManager manager, NetworkHandler parent) {
         super(manager, parent);
     }
 
+    /**
+     * Sets the amount of workers to shard
+     * tasks over. Has to be set before starting.
+     * @param count The amount of workers.
+     * @return This.
+     */
+    public synchronized UtilityNetworkHandler withWorkers(int count) {
+        if (workers != null)
+            throw new IllegalStateException("utility handler workers already created");
+        if (count < 1)
+            throw new IllegalArgumentException("worker count must be at least 1");
+        this.workerCount = count;
+        return this;
+    }
+
+    public int workerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Sets how packets received by child handlers are
+     * delivered to this one, and which stay in order.
+     * @param ordering The ordering.
+     * @return This.
+     */
+    public UtilityNetworkHandler withDeliveryOrdering(DeliveryOrdering ordering) {
+        this.deliveryOrdering = ordering;
+        return this;
+    }
+
+    /**
+     * Sets the key packets are sharded by with the
+     * {@link DeliveryOrdering#KEY} ordering, like the user
+     * owning the connection. Packets only stay in order with
+     * others of the same key, so when the key of a connection
+     * changes the packets before may still be handled.
+     * @param shardKey Gets the key from the child handler.
+     * @return This.
+     */
+    public UtilityNetworkHandler withShardKey(Function<NetworkHandler, Object> shardKey) {
+        this.shardKey = shardKey;
+        return this;
+    }
+
+    public DeliveryOrdering deliveryOrdering() {
+        return deliveryOrdering;
+    }
+
+    // get the workers, creating them when
+    // first needed so tasks can be scheduled
+    // before the handler is started
+    private synchronized UtilityWorkerThread[] workers() {
+        if (workers == null) {
+            UtilityWorkerThread[] newWorkers = new UtilityWorkerThread[workerCount];
+            for (int i = 0; i < workerCount; i++)
+                newWorkers[i] = new UtilityWorkerThread();
+            workerThread = newWorkers[0];
+            workers = newWorkers;
+        }
+
+        return workers;
+    }
+
+    @Override
+    public UtilityNetworkHandler start() {
+        active.set(true);
+        for (UtilityWorkerThread worker : workers())
+            worker.start();
+        return this;
+    }
+
+    @Override
+    public UtilityNetworkHandler stop() {
+        super.stop();
+
+        // wake up the workers so they exit
+        if (workers != null)
+            for (UtilityWorkerThread worker : workers)
+                worker.wakeUp();
+        return this;
+    }
+
     @Override
     protected WorkerThread createWorkerThread() {
-        return new UtilityWorkerThread();
+        // the workers are created by workers()
+        return null;
     }
 
     @Override
@@ -39,6 +142,35 @@ public class UtilityNetworkHandler extends NetworkHandler<UtilityNetworkHandler>
         node.handle(this, packet);
     }
 
+    @Override
+    protected void deliver(NetworkHandler child, Packet packet) {
+        UtilityWorkerThread worker;
+        switch (deliveryOrdering) {
+            case SYNCHRONOUS -> {
+                handle(packet);
+                return;
+            }
+
+            case CONNECTION -> worker = workerFor(child);
+            case KEY -> {
+                Object key = shardKey.apply(child);
+                worker = workerFor(key != null ? key : child);
+            }
+
+            default -> worker = nextWorker();
+        }
+
+        // keep it from being recycled by the child
+        packet.retain();
+        worker.offer(() -> {
+            try {
+                handle(packet);
+            } finally {
+                packet.release();
+            }
+        });
+    }
+
     @Override
     protected boolean canHandleAsync(Packet packet) {
         return true;
@@ -54,45 +186,103 @@ public class UtilityNetworkHandler extends NetworkHandler<UtilityNetworkHandler>
         Tasks
      */
 
+    /**
+     * Schedules a task on the worker of the current
+     * thread, so tasks scheduled by one thread run
+     * in the order they were scheduled.
+     * @param runnable The task.
+     * @return This.
+     */
     public UtilityNetworkHandler schedule(Runnable runnable) {
-        synchronized (tasks) {
-            tasks.add(runnable);
-        }
-
-        if (waiting.get()) {
-            synchronized (lock) {
-                lock.notifyAll();
-            }
-        }
+        return schedule(Thread.currentThread(), runnable);
+    }
 
+    /**
+     * Schedules a task on the worker for the key,
+     * tasks with the same key run in order.
+     * @param key The key, like the connection.
+     * @param runnable The task.
+     * @return This.
+     */
+    public UtilityNetworkHandler schedule(Object key, Runnable runnable) {
+        workerFor(key).offer(runnable);
         return this;
     }
 
+    // get the worker a key is sharded to
+    private UtilityWorkerThread workerFor(Object key) {
+        UtilityWorkerThread[] workers = this.workers;
+        if (workers == null)
+            workers = workers();
+        if (workers.length == 1)
+            return workers[0];
+
+        // spread the hash bits
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return workers[(h & 0x7FFFFFFF) % workers.length];
+    }
+
+    // get the next worker in turn
+    private UtilityWorkerThread nextWorker() {
+        UtilityWorkerThread[] workers = this.workers;
+        if (workers == null)
+            workers = workers();
+        if (workers.length == 1)
+            return workers[0];
+        return workers[(nextWorker.getAndIncrement() & 0x7FFFFFFF) % workers.length];
+    }
+
     /* ---------- Worker ---------- */
 
     class UtilityWorkerThread extends WorkerThread {
 
+        // the queue of tasks
+        final MpscQueue<Runnable> tasks = new MpscQueue<>();
+        // if the worker is about to park or parked
+        volatile boolean waiting = false;
+
+        void offer(Runnable task) {
+            tasks.offer(task);
+
+            // the worker sets waiting before checking
+            // the queue, so it either sees the task or
+            // we see it waiting and wake it up
+            if (waiting)
+                wakeUp();
+        }
+
+        void wakeUp() {
+            Thread thread = getThread();
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+
         @Override
         public void runSafe() throws Throwable {
             // main loop
             while (active.get()) {
-                // execute tasks
-                synchronized (tasks) {
-                    while (!tasks.isEmpty()) {
-                        // poll new task
-                        Runnable task = tasks.poll();
-
-                        // execute
+                // execute a batch of tasks
+                int count = 0;
+                Runnable task;
+                while (count < MAX_BATCH && (task = tasks.poll()) != null) {
+                    count++;
+                    try {
                         task.run();
+                    } catch (Throwable t) {
+                        LOGGER.err(getName() + ": Error while running task");
+                        t.printStackTrace(Logging.ERR);
                     }
                 }
 
+                if (count != 0)
+                    continue;
+
                 // wait for tasks
-                synchronized (lock) {
-                    waiting.set(true);
-                    lock.wait();
-                    waiting.set(false);
-                }
+                waiting = true;
+                if (tasks.isEmpty() && active.get())
+                    LockSupport.park(this);
+                waiting = false;
             }
         }
 
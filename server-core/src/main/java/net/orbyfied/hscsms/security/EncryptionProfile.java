@@ -6,7 +6,9 @@ import net.orbyfied.j8.util.logging.Logger;
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
@@ -201,6 +203,59 @@ public abstract class EncryptionProfile<S extends EncryptionProfile> {
         return decrypt(fromBase64(str));
     }
 
+    /*
+        Buffer Encryption and Decryption
+     */
+
+    /**
+     * Get the maximum size of the encrypted data
+     * for the given amount of plain bytes.
+     * @param length The plain length.
+     * @return The encrypted length.
+     */
+    public int encryptedSize(int length) {
+        int blocks = (length + unpaddedBlockSize - 1) / unpaddedBlockSize;
+        return blocks * paddedBlockSize;
+    }
+
+    /**
+     * Encrypts the remaining bytes of the source
+     * into the destination, block by block. The last
+     * block may be shorter than the padded block size.
+     * @param src The plain source.
+     * @param dst The destination.
+     */
+    public synchronized void encrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+        if (cipher == null)
+            throw new IllegalStateException();
+        cipher.init(Cipher.ENCRYPT_MODE, getEncryptionKey());
+        processBlocks(src, dst, unpaddedBlockSize);
+    }
+
+    /**
+     * Decrypts the remaining bytes of the source,
+     * as written by {@link #encrypt(ByteBuffer, ByteBuffer)},
+     * into the destination.
+     * @param src The encrypted source.
+     * @param dst The destination.
+     */
+    public synchronized void decrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+        if (cipher == null)
+            throw new IllegalStateException();
+        cipher.init(Cipher.DECRYPT_MODE, getDecryptionKey());
+        processBlocks(src, dst, paddedBlockSize);
+    }
+
+    // runs the cipher over each block of the source
+    private void processBlocks(ByteBuffer src, ByteBuffer dst, int blockSize) throws GeneralSecurityException {
+        int limit = src.limit();
+        while (src.hasRemaining()) {
+            src.limit(Math.min(limit, src.position() + blockSize));
+            cipher.doFinal(src, dst);
+            src.limit(limit);
+        }
+    }
+
     /*
         Large Data Encryption and Decryption
      */
@@ -0,0 +1,186 @@
+package net.orbyfied.hscsms.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Issues and opens session tickets, which let a client
+ * resume a previous session without the RSA handshake.
+ * A ticket is the resumption secret of the session and
+ * its issue time, encrypted with a key only the server
+ * knows, so the server keeps no state per session.
+ * The client keeps the secret next to the ticket and
+ * derives the new session key from it and fresh nonces.
+ * Ticket keys are rotated every lifetime, tickets stay
+ * valid for at most one lifetime after being issued.
+ */
+public class SessionTickets {
+
+    // the size of the resumption secrets and nonces
+    public static final int SECRET_LENGTH = 32;
+    public static final int NONCE_LENGTH  = 16;
+
+    // the size of the derived session key, matching
+    // the keys generated for the full handshake
+    static final int SESSION_KEY_LENGTH = 16;
+
+    // the ticket encryption
+    static final String TICKET_CIPHER = "AES/GCM/NoPadding";
+    static final int TICKET_KEY_LENGTH = 256;
+    static final int TICKET_IV_LENGTH  = 12;
+    static final int TICKET_TAG_LENGTH = 128;
+    static final byte[] KEY_LABEL = "hscsms session resumption".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * A ticket and the secret it contains.
+     * @param ticket The encrypted ticket, for the client to send back.
+     * @param secret The resumption secret, for the client to keep.
+     */
+    public record Ticket(byte[] ticket, byte[] secret) { }
+
+    // a key tickets are encrypted with
+    record TicketKey(byte id, SecretKey key, long createdAt) { }
+
+    final SecureRandom random = new SecureRandom();
+
+    // the time tickets are valid for
+    final long lifetimeMillis;
+
+    // the key new tickets are encrypted with and the
+    // one before it, for tickets issued before rotating
+    volatile TicketKey currentKey;
+    volatile TicketKey previousKey;
+
+    public SessionTickets(long lifetimeMillis) {
+        if (lifetimeMillis <= 0)
+            throw new IllegalArgumentException("ticket lifetime must be positive");
+        this.lifetimeMillis = lifetimeMillis;
+        this.currentKey     = newKey((byte) 0);
+    }
+
+    public long lifetimeMillis() {
+        return lifetimeMillis;
+    }
+
+    /**
+     * Issues a ticket for a new resumption secret.
+     * @return The ticket.
+     */
+    public Ticket issue() throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        TicketKey key = rotateIfNeeded(now);
+
+        byte[] secret = randomBytes(SECRET_LENGTH);
+        byte[] iv     = randomBytes(TICKET_IV_LENGTH);
+        Cipher cipher = Cipher.getInstance(TICKET_CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, key.key(), new GCMParameterSpec(TICKET_TAG_LENGTH, iv));
+        cipher.updateAAD(new byte[] { key.id() });
+
+        ByteBuffer plain = ByteBuffer.allocate(8 + SECRET_LENGTH);
+        plain.putLong(now).put(secret).flip();
+        ByteBuffer ticket = ByteBuffer.allocate(1 + TICKET_IV_LENGTH + cipher.getOutputSize(plain.remaining()));
+        ticket.put(key.id()).put(iv);
+        cipher.doFinal(plain, ticket);
+        return new Ticket(ticket.array(), secret);
+    }
+
+    /**
+     * Opens a ticket sent by a client.
+     * @param ticket The encrypted ticket.
+     * @return The resumption secret or null if the
+     *         ticket is invalid or expired.
+     */
+    public byte[] open(byte[] ticket) {
+        if (ticket == null || ticket.length < 1 + TICKET_IV_LENGTH + TICKET_TAG_LENGTH / 8)
+            return null;
+
+        // find the key it was encrypted with
+        TicketKey key = currentKey;
+        if (key.id() != ticket[0]) {
+            key = previousKey;
+            if (key == null || key.id() != ticket[0])
+                return null;
+        }
+
+        try {
+            Cipher cipher = Cipher.getInstance(TICKET_CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key.key(),
+                    new GCMParameterSpec(TICKET_TAG_LENGTH, ticket, 1, TICKET_IV_LENGTH));
+            cipher.updateAAD(ticket, 0, 1);
+            byte[] plain = cipher.doFinal(ticket, 1 + TICKET_IV_LENGTH, ticket.length - 1 - TICKET_IV_LENGTH);
+            if (plain.length != 8 + SECRET_LENGTH)
+                return null;
+
+            // check the lifetime
+            long issuedAt = ByteBuffer.wrap(plain).getLong();
+            long age = System.currentTimeMillis() - issuedAt;
+            if (age < 0 || age > lifetimeMillis)
+                return null;
+            return Arrays.copyOfRange(plain, 8, plain.length);
+        } catch (GeneralSecurityException e) {
+            // tampered with or not ours
+            return null;
+        }
+    }
+
+    /**
+     * Derives the key of a resumed session from the
+     * resumption secret and the nonces of both sides.
+     * @param secret The resumption secret.
+     * @param clientNonce The nonce sent by the client.
+     * @param serverNonce The nonce sent by the server.
+     * @return The session key.
+     */
+    public static SecretKey deriveKey(byte[] secret, byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        mac.update(KEY_LABEL);
+        mac.update(clientNonce);
+        mac.update(serverNonce);
+        return new SecretKeySpec(Arrays.copyOf(mac.doFinal(), SESSION_KEY_LENGTH), "AES");
+    }
+
+    public byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // switches to a new ticket key once the
+    // current one is older than a lifetime
+    private TicketKey rotateIfNeeded(long now) {
+        TicketKey key = currentKey;
+        if (now - key.createdAt() < lifetimeMillis)
+            return key;
+
+        synchronized (this) {
+            key = currentKey;
+            if (now - key.createdAt() >= lifetimeMillis) {
+                previousKey = key;
+                currentKey  = key = newKey((byte) (key.id() + 1));
+            }
+
+            return key;
+        }
+    }
+
+    private TicketKey newKey(byte id) {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(TICKET_KEY_LENGTH, random);
+            return new TicketKey(id, generator.generateKey(), System.currentTimeMillis());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("failed to generate ticket key", e);
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package net.orbyfied.hscsms.server;
+
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The clients connected to the server, indexed by
+ * connection id, remote address and the user they
+ * are logged in as. Safe to use from any thread.
+ */
+public class ClientRegistry {
+
+    // a snapshot of the clients at a version
+    record Snapshot(long version, ServerClient[] clients) { }
+
+    static final ServerClient[] NO_CLIENTS = new ServerClient[0];
+
+    // the next connection id
+    final AtomicLong nextId = new AtomicLong(1);
+
+    // the indexes
+    final Map<Long, ServerClient> byId = new ConcurrentHashMap<>();
+    final Map<SocketAddress, ServerClient> byAddress = new ConcurrentHashMap<>();
+    final Map<UUID, ServerClient> byUser = new ConcurrentHashMap<>();
+
+    // incremented on every change of the clients
+    final AtomicLong version = new AtomicLong(0);
+    // the last snapshot taken
+    volatile Snapshot snapshot = new Snapshot(0, NO_CLIENTS);
+
+    /**
+     * Registers the client, assigning
+     * it a new connection id.
+     * @param client The client.
+     * @return The connection id.
+     */
+    public long register(ServerClient client) {
+        long id = nextId.getAndIncrement();
+        client.id = id;
+        byId.put(id, client);
+
+        SocketAddress address = client.networkHandler.getRemoteAddress();
+        if (isIndexable(address))
+            byAddress.put(address, client);
+
+        version.incrementAndGet();
+        return id;
+    }
+
+    /**
+     * Removes the client from all indexes.
+     * Does nothing if it is not registered.
+     * @param client The client.
+     * @return If it was registered.
+     */
+    public boolean remove(ServerClient client) {
+        if (!byId.remove(client.id, client))
+            return false;
+
+        SocketAddress address = client.networkHandler.getRemoteAddress();
+        if (isIndexable(address))
+            byAddress.remove(address, client);
+        if (client.userId != null)
+            byUser.remove(client.userId, client);
+
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Indexes the client by the user it logged in as,
+     * replacing the client previously logged in as it.
+     * @param client The client.
+     * @param userId The user UUID.
+     * @return The previous client or null.
+     */
+    public ServerClient bindUser(ServerClient client, UUID userId) {
+        if (client.userId != null)
+            byUser.remove(client.userId, client);
+        client.userId = userId;
+        return byUser.put(userId, client);
+    }
+
+    /**
+     * Removes the client from the user index.
+     * @param client The client.
+     */
+    public void unbindUser(ServerClient client) {
+        if (client.userId != null) {
+            byUser.remove(client.userId, client);
+            client.userId = null;
+        }
+    }
+
+    // clients on unix domain sockets are unnamed,
+    // so their addresses are all the same
+    private static boolean isIndexable(SocketAddress address) {
+        if (address instanceof UnixDomainSocketAddress unixAddress)
+            return !unixAddress.getPath().toString().isEmpty();
+        return address != null;
+    }
+
+    public ServerClient byId(long id) {
+        return byId.get(id);
+    }
+
+    public ServerClient byAddress(SocketAddress address) {
+        return byAddress.get(address);
+    }
+
+    public ServerClient byUser(UUID userId) {
+        return byUser.get(userId);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Get the currently registered clients. The array
+     * is shared until the clients change, so taking a
+     * snapshot repeatedly is cheap. Must not be modified.
+     * @return The clients.
+     */
+    public ServerClient[] snapshot() {
+        Snapshot snapshot = this.snapshot;
+        long version = this.version.get();
+        if (snapshot.version == version)
+            return snapshot.clients;
+
+        // read the version before copying, so a change
+        // during the copy causes another one next time
+        ServerClient[] clients = byId.values().toArray(NO_CLIENTS);
+        this.snapshot = new Snapshot(version, clients);
+        return clients;
+    }
+
+}
@@ -0,0 +1,95 @@
+package net.orbyfied.hscsms.server;
+
+import net.orbyfied.hscsms.common.protocol.PacketServerboundDisconnect;
+import net.orbyfied.hscsms.common.protocol.PacketUnboundHeartbeat;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketServerboundClientKey;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketServerboundResumeSession;
+import net.orbyfied.hscsms.common.protocol.login.PacketServerboundCreateUser;
+import net.orbyfied.hscsms.network.NetworkHandler;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.handler.HandlerNode;
+
+import java.util.Set;
+
+/**
+ * The states of a client connection. Every state has a
+ * dispatch table built once and shared by all clients in
+ * it, its handlers find the client through the owner of
+ * the network handler, which keeps the state of the
+ * connection, so connecting builds no handler nodes.
+ */
+public enum ClientState {
+
+    /**
+     * Waiting for the client key or a session ticket.
+     */
+    HANDSHAKE,
+
+    /**
+     * Encrypted, the client may log in or create a user.
+     */
+    LOGIN,
+
+    /**
+     * Logged in as a user.
+     */
+    AUTHENTICATED;
+
+    // the shared dispatch table
+    final HandlerNode node = new HandlerNode(null);
+    // the packets switching keys in this state,
+    // reading is held until they were handled
+    Set<PacketType<?>> barrierTypes = Set.of();
+
+    public HandlerNode node() {
+        return node;
+    }
+
+    public Set<PacketType<?>> barrierTypes() {
+        return barrierTypes;
+    }
+
+    static {
+        for (ClientState state : values()) {
+            // the client disconnects on its own
+            state.node.childForType(PacketServerboundDisconnect.TYPE)
+                    .withHandler((handler, node, packet) -> {
+                        client(handler).networkHandler.disconnect();
+                        return HandlerNode.Result.HALT;
+                    });
+
+            // heartbeats only need to be received,
+            // which resets the read timeout
+            state.node.childForType(PacketUnboundHeartbeat.TYPE)
+                    .withHandler((handler, node, packet) -> HandlerNode.Result.HALT);
+        }
+
+        HANDSHAKE.barrierTypes = Set.of(PacketServerboundResumeSession.TYPE, PacketServerboundClientKey.TYPE);
+
+        // a client with a ticket resumes its
+        // session instead of sending a key
+        HANDSHAKE.node.childForType(PacketServerboundResumeSession.TYPE)
+                .<PacketServerboundResumeSession>withHandler((handler, node, packet) -> {
+                    client(handler).onResumeSession(packet);
+                    return HandlerNode.Result.HALT;
+                });
+
+        HANDSHAKE.node.childForType(PacketServerboundClientKey.TYPE)
+                .<PacketServerboundClientKey>withHandler((handler, node, packet) -> {
+                    client(handler).onClientKey(packet);
+                    return HandlerNode.Result.HALT;
+                });
+
+        LOGIN.node.childForType(PacketServerboundCreateUser.TYPE)
+                .<PacketServerboundCreateUser>withHandler((handler, node, packet) -> {
+                    client(handler).onCreateUser(packet);
+                    return HandlerNode.Result.HALT;
+                });
+    }
+
+    // the client owning the network handler
+    static ServerClient client(NetworkHandler handler) {
+        return (ServerClient) handler.owner();
+    }
+
+}
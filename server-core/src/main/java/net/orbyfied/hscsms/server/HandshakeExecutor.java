@@ -0,0 +1,258 @@
+package net.orbyfied.hscsms.server;
+
+import net.orbyfied.hscsms.service.Logging;
+import net.orbyfied.hscsms.util.worker.HashedWheelTimer;
+import net.orbyfied.j8.util.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admits the handshakes of new connections, at most
+ * a maximum at once. A handshake holds its slot until
+ * it is released, when the connection is encrypted or
+ * ended. Connections beyond the maximum wait in a bounded
+ * queue for a slot, and are shed if the queue is full or
+ * they waited longer than the timeout, so a storm of
+ * reconnects is turned away instead of starving the server.
+ * Admitted handshakes are started on their own threads,
+ * which also decrypt the keys sent by the clients.
+ */
+public class HandshakeExecutor {
+
+    private static final Logger LOGGER = Logging.getLogger("HandshakeExecutor");
+
+    // a connection waiting for a slot
+    static final class Pending {
+
+        final Runnable task;
+        final Runnable onShed;
+        final long deadline;
+
+        // if it left the queue, guarded by the executor
+        boolean done;
+        // the expiry of the wait, if there is a timer
+        volatile HashedWheelTimer.Timeout timeout;
+
+        Pending(Runnable task, Runnable onShed, long deadline) {
+            this.task     = task;
+            this.onShed   = onShed;
+            this.deadline = deadline;
+        }
+
+    }
+
+    ////////////////////////////////
+
+    // the threads handshakes are started on
+    final ExecutorService executor;
+    // the timer expiring waiting connections, without
+    // one they are only shed once they are dequeued
+    HashedWheelTimer timer;
+
+    // the limits
+    final int maxConcurrent;
+    final int maxQueued;
+    final long queueTimeoutNanos;
+
+    // the waiting connections in order, expired ones
+    // are removed right away so it stays bounded by
+    // the maximum, guarded by this
+    final LinkedHashSet<Pending> queue = new LinkedHashSet<>();
+    // the slots taken, guarded by this
+    int running;
+
+    // the amount of admitted and shed connections
+    final LongAdder admitted = new LongAdder();
+    final LongAdder shed     = new LongAdder();
+
+    public HandshakeExecutor(ExecutorService executor, int maxConcurrent, int maxQueued, long queueTimeoutMillis) {
+        if (maxConcurrent <= 0)
+            throw new IllegalArgumentException("max concurrent handshakes must be positive");
+        this.executor          = executor;
+        this.maxConcurrent     = maxConcurrent;
+        this.maxQueued         = Math.max(0, maxQueued);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    }
+
+    public HandshakeExecutor withTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+        return this;
+    }
+
+    /**
+     * Get the threads handshakes are run on, which
+     * also decrypt the key exchange of connections.
+     * @return The executor.
+     */
+    public ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * Starts the handshake if a slot is free, otherwise
+     * queues it or sheds the connection. The handshake
+     * has to release its slot once it is done.
+     * @param task Starts the handshake.
+     * @param onShed Turns the connection away.
+     */
+    public void submit(Runnable task, Runnable onShed) {
+        Pending pending = null;
+        boolean admit = false;
+        synchronized (this) {
+            if (running < maxConcurrent) {
+                running++;
+                admit = true;
+            } else if (queue.size() < maxQueued) {
+                pending = new Pending(task, onShed, System.nanoTime() + queueTimeoutNanos);
+                queue.add(pending);
+            }
+        }
+
+        if (admit) {
+            start(task, onShed);
+        } else if (pending == null) {
+            shed(onShed);
+        } else if (timer != null) {
+            final Pending p = pending;
+            pending.timeout = timer.schedule(() -> expire(p), queueTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Frees the slot of a handshake which is done,
+     * starting the next waiting one.
+     */
+    public void release() {
+        Pending next = null;
+        List<Pending> expired = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            Iterator<Pending> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Pending pending = iterator.next();
+                iterator.remove();
+                pending.done = true;
+
+                if (now - pending.deadline > 0) {
+                    if (expired == null)
+                        expired = new ArrayList<>();
+                    expired.add(pending);
+                    continue;
+                }
+
+                // hand the slot over
+                next = pending;
+                break;
+            }
+
+            if (next == null)
+                running--;
+        }
+
+        if (expired != null) {
+            for (Pending pending : expired)
+                shedPending(pending);
+        }
+
+        if (next != null) {
+            cancelTimeout(next);
+            start(next.task, next.onShed);
+        }
+    }
+
+    // sheds a connection which waited too long
+    private void expire(Pending pending) {
+        synchronized (this) {
+            if (pending.done)
+                return;
+            pending.done = true;
+            queue.remove(pending);
+        }
+
+        shed(pending.onShed);
+    }
+
+    private void shedPending(Pending pending) {
+        cancelTimeout(pending);
+        shed(pending.onShed);
+    }
+
+    private void cancelTimeout(Pending pending) {
+        HashedWheelTimer.Timeout timeout = pending.timeout;
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    private void start(Runnable task, Runnable onShed) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOGGER.err("Error while starting handshake");
+                    t.printStackTrace(Logging.ERR);
+                }
+            });
+
+            admitted.increment();
+        } catch (RejectedExecutionException e) {
+            // shut down
+            release();
+            shed(onShed);
+        }
+    }
+
+    private void shed(Runnable onShed) {
+        shed.increment();
+        try {
+            onShed.run();
+        } catch (Throwable t) {
+            LOGGER.err("Error while shedding connection");
+            t.printStackTrace(Logging.ERR);
+        }
+    }
+
+    /**
+     * Stops starting handshakes, shedding the waiting
+     * ones as they are not registered with the server.
+     */
+    public void shutdown() {
+        List<Pending> waiting;
+        synchronized (this) {
+            waiting = new ArrayList<>(queue);
+            queue.clear();
+            for (Pending pending : waiting)
+                pending.done = true;
+        }
+
+        for (Pending pending : waiting)
+            shedPending(pending);
+        executor.shutdown();
+    }
+
+    /* ---- Counters ---- */
+
+    public synchronized int runningCount() {
+        return running;
+    }
+
+    public synchronized int queuedCount() {
+        return queue.size();
+    }
+
+    public long admittedCount() {
+        return admitted.sum();
+    }
+
+    public long shedCount() {
+        return shed.sum();
+    }
+
+}
@@ -9,20 +9,49 @@ import net.orbyfied.hscsms.db.DatabaseManager;
 import net.orbyfied.hscsms.db.Login;
 import net.orbyfied.hscsms.db.impl.MongoDatabase;
 import net.orbyfied.hscsms.network.NetworkManager;
+import net.orbyfied.hscsms.network.Packet;
+import net.orbyfied.hscsms.network.PacketType;
+import net.orbyfied.hscsms.network.ThreadMode;
+import net.orbyfied.hscsms.network.handler.DeliveryOrdering;
+import net.orbyfied.hscsms.network.handler.FlushPolicy;
+import net.orbyfied.hscsms.network.handler.IdlePolicy;
+import net.orbyfied.hscsms.network.handler.LoopbackNetworkHandler;
+import net.orbyfied.hscsms.network.handler.NioEventLoopGroup;
+import net.orbyfied.hscsms.network.handler.OutboundPolicy;
+import net.orbyfied.hscsms.network.handler.RateLimit;
+import net.orbyfied.hscsms.network.handler.RateLimiter;
+import net.orbyfied.hscsms.network.handler.SerializedPacket;
 import net.orbyfied.hscsms.network.handler.UtilityNetworkHandler;
 import net.orbyfied.hscsms.security.AsymmetricEncryptionProfile;
+import net.orbyfied.hscsms.security.SessionTickets;
+import net.orbyfied.hscsms.server.resource.ServerMessageChannel;
 import net.orbyfied.hscsms.service.Logging;
+import net.orbyfied.hscsms.util.worker.HashedWheelTimer;
 import net.orbyfied.hscsms.util.worker.SafeWorker;
 import net.orbyfied.hscsms.util.Values;
+import net.orbyfied.j8.registry.Identifier;
 import net.orbyfied.j8.util.logging.Logger;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 public class Server {
 
@@ -45,26 +74,81 @@ public class Server {
     // the servers socket address
     SocketAddress address;
     // the server socket
-    ServerSocket socket;
+    ServerSocketChannel socket;
+    // the sockets of the other acceptors, their own
+    // on the same port if the platform balances new
+    // connections over them, otherwise the server socket
+    final List<ServerSocketChannel> acceptorSockets = new ArrayList<>();
+    // the unix domain socket for clients on the
+    // same host, null if not bound
+    ServerSocketChannel unixSocket;
+    Path unixSocketPath;
+
+    // the event loops for the nio transport
+    // null if the socket transport is used
+    NioEventLoopGroup eventLoopGroup;
+    // when client connections flush queued packets
+    FlushPolicy flushPolicy = FlushPolicy.END_OF_BATCH;
+    // the minimum size of packets to compress
+    // or -1 if compression is disabled
+    int compressionThreshold = 256;
+    // the bounds of the outbound queue of clients
+    OutboundPolicy outboundPolicy = OutboundPolicy.DEFAULT;
+    // the amount of slow consumers disconnected
+    final LongAdder slowConsumers = new LongAdder();
+    // when idle clients are sent heartbeats and time out
+    IdlePolicy idlePolicy = IdlePolicy.DEFAULT;
+    // the amount of clients which timed out
+    final LongAdder timeouts = new LongAdder();
+    // the limits on packets received from clients
+    final RateLimiter rateLimiter = new RateLimiter();
+    // admits the handshakes of new connections
+    HandshakeExecutor handshakes;
+    // the time an admitted connection has to finish
+    // the handshake in, or 0 to wait indefinitely
+    long handshakeTimeoutMillis = 10000;
 
     // the server utility network handler
     UtilityNetworkHandler networkHandler;
     // server socket worker
     public final SafeWorker serverSocketWorker = new SafeWorker("ServerSocketWorker")
             .withActivityPredicate(safeWorker -> active.get());
+    // unix domain socket worker
+    public final SafeWorker unixSocketWorker = new SafeWorker("UnixSocketWorker")
+            .withActivityPredicate(safeWorker -> active.get());
+    // the workers of the other acceptors
+    final List<SafeWorker> acceptorWorkers = new ArrayList<>();
 
     public UtilityNetworkHandler utilityNetworkHandler() {
         return networkHandler;
     }
 
     // the currently connected clients
-    List<ServerClient> clients = new ArrayList<>();
+    final ClientRegistry clients = new ClientRegistry();
+
+    public ClientRegistry clients() {
+        return clients;
+    }
+
+    // the amount of recipients from which a
+    // broadcast is split over the broadcast threads
+    static final int PARALLEL_BROADCAST_SIZE = 512;
+    // the threads large broadcasts are sent on, apart
+    // from dispatch so a client blocking the sender does
+    // not stall handling packets, null to send them on
+    // the calling thread
+    ExecutorService broadcastExecutor;
 
     /* ------ Security ----- */
 
     // the top level encryption
     public final AsymmetricEncryptionProfile topLevelEncryption
             = ProtocolSpec.newAsymmetricEncryptionProfile();
+    // issues the tickets to resume sessions with,
+    // null if sessions can not be resumed
+    SessionTickets sessionTickets;
+    // the amount of sessions resumed
+    final LongAdder resumedSessions = new LongAdder();
 
     /* ------ Top-Level Services ------ */
 
@@ -83,6 +167,89 @@ public class Server {
         return name;
     }
 
+    /**
+     * Get the network section of the
+     * configuration, or an empty section.
+     * @return The network configuration.
+     */
+    public Values networkConfiguration() {
+        Values networkConfig = configuration.get("network", Values.class);
+        return networkConfig != null ? networkConfig : new Values();
+    }
+
+    public FlushPolicy flushPolicy() {
+        return flushPolicy;
+    }
+
+    public int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public OutboundPolicy outboundPolicy() {
+        return outboundPolicy;
+    }
+
+    /**
+     * Get the amount of clients disconnected because
+     * they did not read the packets sent to them
+     * fast enough, since the server was opened.
+     * @return The slow consumer count.
+     */
+    public long slowConsumerCount() {
+        return slowConsumers.sum();
+    }
+
+    public IdlePolicy idlePolicy() {
+        return idlePolicy;
+    }
+
+    /**
+     * Get the amount of clients disconnected because
+     * nothing was received from them for longer than
+     * the read timeout, since the server was opened.
+     * @return The timeout count.
+     */
+    public long timeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Get the limits on the packets received
+     * from clients, which also keeps count of
+     * the packets exceeding them.
+     * @return The rate limiter.
+     */
+    public RateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Get the executor admitting the handshakes of new
+     * connections, which counts the connections shed.
+     * @return The handshake executor.
+     */
+    public long handshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public HandshakeExecutor handshakes() {
+        return handshakes;
+    }
+
+    public SessionTickets sessionTickets() {
+        return sessionTickets;
+    }
+
+    /**
+     * Get the amount of clients which skipped
+     * the RSA handshake by resuming a session,
+     * since the server was opened.
+     * @return The resumed session count.
+     */
+    public long resumedSessionCount() {
+        return resumedSessions.sum();
+    }
+
     /**
      * Bind and open the server on the provided
      * socket address.
@@ -97,20 +264,66 @@ public class Server {
         this.address = address;
 
         try {
-            // create and bind socket
-            socket = new ServerSocket();
+            // create and bind socket, reusing the port
+            // for the other acceptors if possible
+            int acceptors = Math.max(1, networkConfiguration().getOrDefault("acceptors", 1));
+            socket = ServerSocketChannel.open();
+            boolean reusePort = acceptors > 1 &&
+                    socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort)
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
             socket.bind(address);
 
-            logger.ok("Connected server on {0}", address);
+            // create the sockets of the other acceptors
+            SocketAddress boundAddress = socket.getLocalAddress();
+            for (int i = 1; i < acceptors; i++) {
+                if (reusePort) {
+                    ServerSocketChannel acceptorSocket = ServerSocketChannel.open();
+                    acceptorSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    acceptorSocket.bind(boundAddress);
+                    acceptorSockets.add(acceptorSocket);
+                } else {
+                    acceptorSockets.add(socket);
+                }
+            }
+
+            logger.ok("Connected server on {0} with {1} acceptors{2}", address, acceptors,
+                    reusePort ? " on reused ports" : "");
         } catch (Exception e) {
             logger.err("Failed to connect server on {0}", address);
             e.printStackTrace(Logging.ERR);
         }
 
+        // bind the unix domain socket if configured
+        String unixSocketPath = networkConfiguration().getOrDefault("unix-socket", "");
+        if (!unixSocketPath.isBlank())
+            openUnixSocket(Path.of(unixSocketPath));
+
+        Values networkConfig = networkConfiguration();
+
+        try {
+            // set thread mode for handler workers, before
+            // any are started as they use it on start
+            String threadMode = networkConfig.getOrDefault("thread-mode", "platform");
+            networkManager.threadMode(ThreadMode.valueOf(threadMode.toUpperCase()));
+        } catch (Exception e) {
+            logger.err("Failed to set network thread mode");
+            e.printStackTrace(Logging.ERR);
+        }
+
         try {
-            // create utility network handler
+            // create utility network handler, sharding the
+            // server wide handling of client packets over
+            // its workers, by user if they are authenticated
+            int utilityWorkers = networkConfig.getOrDefault("utility-workers", 0);
+            if (utilityWorkers <= 0)
+                utilityWorkers = Runtime.getRuntime().availableProcessors();
             networkHandler = new UtilityNetworkHandler(networkManager, null)
-                    .owned(this);
+                    .owned(this)
+                    .withWorkers(utilityWorkers)
+                    .withDeliveryOrdering(DeliveryOrdering.parse(
+                            networkConfig.getOrDefault("parent-delivery", "connection")))
+                    .withShardKey(child -> child.owner() instanceof ServerClient client ? client.userId : null);
 
             // start
             networkHandler.start();
@@ -121,6 +334,94 @@ public class Server {
             e.printStackTrace(Logging.ERR);
         }
 
+        try {
+            // get flush policy for client connections
+            Number flushMaxLatency = networkConfig.getOrDefault("flush-max-latency", 200);
+            flushPolicy = FlushPolicy.parse(networkConfig.getOrDefault("flush-policy", "end-of-batch"),
+                    flushMaxLatency.longValue());
+
+            // get compression threshold
+            compressionThreshold = networkConfig.getOrDefault("compression-threshold", 256);
+
+            // get outbound queue bounds
+            Number highWatermark = networkConfig.getOrDefault("outbound-high-watermark", 4194304);
+            Number lowWatermark  = networkConfig.getOrDefault("outbound-low-watermark", 1048576);
+            outboundPolicy = new OutboundPolicy(highWatermark.longValue(), lowWatermark.longValue(),
+                    OutboundPolicy.parseOverflow(networkConfig.getOrDefault("outbound-overflow", "disconnect")));
+
+            // get idle timeouts and start the timer
+            // shared by all client connections
+            Number readTimeout       = networkConfig.getOrDefault("read-timeout", 30000);
+            Number heartbeatInterval = networkConfig.getOrDefault("heartbeat-interval", 10000);
+            idlePolicy = new IdlePolicy(readTimeout.longValue(), heartbeatInterval.longValue());
+            if (idlePolicy.isEnabled())
+                networkManager.timer(new HashedWheelTimer("NHTimer").start());
+        } catch (Exception e) {
+            logger.err("Failed to configure client connections");
+            e.printStackTrace(Logging.ERR);
+        }
+
+        try {
+            // admit the handshakes of new connections on
+            // their own threads, shedding them beyond the limits
+            Number handshakeQueueTimeout = networkConfig.getOrDefault("handshake-queue-timeout", 5000);
+            Number handshakeTimeout      = networkConfig.getOrDefault("handshake-timeout", 10000);
+            handshakeTimeoutMillis = handshakeTimeout.longValue();
+            int handshakeThreads = networkConfig.getOrDefault("handshake-threads", 2);
+            handshakes = newHandshakeExecutor(handshakeThreads,
+                    networkConfig.getOrDefault("max-handshakes", 256),
+                    networkConfig.getOrDefault("handshake-queue", 1024),
+                    handshakeQueueTimeout.longValue());
+        } catch (Exception e) {
+            logger.err("Failed to configure handshakes, using the defaults");
+            e.printStackTrace(Logging.ERR);
+            handshakes = newHandshakeExecutor(2, 256, 1024, 5000);
+        }
+
+        try {
+            // create the executor packets are handled
+            // on, unless handling on the io threads
+            int dispatchThreads = networkConfig.getOrDefault("dispatch-threads", 0);
+            if (dispatchThreads >= 0) {
+                if (dispatchThreads == 0)
+                    dispatchThreads = Runtime.getRuntime().availableProcessors();
+                networkManager
+                        .dispatchExecutor(networkManager.threadMode().newExecutor("NHDispatch", dispatchThreads))
+                        .maxPendingPackets(networkConfig.getOrDefault("dispatch-max-pending", 256));
+            }
+        } catch (Exception e) {
+            logger.err("Failed to create dispatch executor, handling packets on the io threads");
+            e.printStackTrace(Logging.ERR);
+        }
+
+        try {
+            // create the executor large broadcasts are sent on
+            int broadcastThreads = networkConfig.getOrDefault("broadcast-threads", 0);
+            if (broadcastThreads >= 0) {
+                if (broadcastThreads == 0)
+                    broadcastThreads = Runtime.getRuntime().availableProcessors();
+                broadcastExecutor = networkManager.threadMode().newExecutor("NHBroadcast", broadcastThreads);
+            }
+        } catch (Exception e) {
+            logger.err("Failed to create broadcast executor, sending broadcasts on the calling thread");
+            e.printStackTrace(Logging.ERR);
+        }
+
+        try {
+            // create event loops if needed
+            String transport = networkConfig.getOrDefault("transport", "nio");
+            if (transport.equalsIgnoreCase("nio")) {
+                eventLoopGroup = new NioEventLoopGroup("NioEventLoop",
+                        networkConfig.getOrDefault("event-loops", 0))
+                        .start();
+
+                logger.ok("Started {0} network event loops", eventLoopGroup.size());
+            }
+        } catch (Exception e) {
+            logger.err("Failed to start network event loops, using the socket transport");
+            e.printStackTrace(Logging.ERR);
+        }
+
         try {
             // load protocol spec
             ProtocolSpec.loadProtocol(networkManager);
@@ -131,6 +432,15 @@ public class Server {
             e.printStackTrace(Logging.ERR);
         }
 
+        try {
+            // configure rate limits, after loading
+            // the protocol to resolve the packet types
+            loadRateLimits(networkConfiguration().get("rate-limits", Values.class));
+        } catch (Exception e) {
+            logger.err("Failed to configure rate limits");
+            e.printStackTrace(Logging.ERR);
+        }
+
         // generate top level key pair
         try {
             topLevelEncryption.generateKeys();
@@ -140,6 +450,16 @@ public class Server {
             e.printStackTrace(Logging.ERR);
         }
 
+        // generate session ticket key
+        try {
+            Number ticketLifetime = networkConfiguration().getOrDefault("session-ticket-lifetime", 3600000);
+            if (ticketLifetime.longValue() > 0)
+                sessionTickets = new SessionTickets(ticketLifetime.longValue());
+        } catch (Exception e) {
+            logger.err("Failed to generate session ticket key");
+            e.printStackTrace(Logging.ERR);
+        }
+
         // reset stage
         logger.stage(null);
 
@@ -147,6 +467,40 @@ public class Server {
         return this;
     }
 
+    @SuppressWarnings("unchecked")
+    private void loadRateLimits(Values config) {
+        if (config == null)
+            return;
+        rateLimiter.withGlobalLimit(parseRateLimit(config.get("global", Values.class)));
+        rateLimiter.withConnectionLimit(parseRateLimit(config.get("connection", Values.class)));
+
+        // limits by packet type
+        Values packets = config.get("packets", Values.class);
+        if (packets == null)
+            return;
+        for (Map.Entry<Object, Object> entry : packets.entrySet()) {
+            PacketType<? extends Packet> type = networkManager.getByIdentifier(Identifier.of(entry.getKey().toString()));
+            if (type == null) {
+                logger.err("Unknown packet type {0} in rate limits", entry.getKey());
+                continue;
+            }
+
+            Values limit = entry.getValue() instanceof Values values ? values
+                    : new Values((Map<String, Object>) entry.getValue());
+            rateLimiter.withLimit(type, parseRateLimit(limit));
+        }
+    }
+
+    // parses a rate limit section, null if absent
+    private static RateLimit parseRateLimit(Values config) {
+        if (config == null)
+            return null;
+        Number rate  = config.get("rate");
+        Number burst = config.getOrDefault("burst", rate);
+        return new RateLimit(rate.longValue(), burst.longValue(),
+                RateLimit.parseAction(config.getOrDefault("action", "delay")));
+    }
+
     public Server setup() {
         // setup databases
         Database db;
@@ -179,12 +533,57 @@ public class Server {
         return this;
     }
 
+    /**
+     * Also binds the server on a unix domain socket,
+     * for clients on the same host to connect without
+     * going through TCP. Replaces a file left at the
+     * path by a previous run.
+     * @param path The path of the socket file.
+     * @return This.
+     */
+    public Server openUnixSocket(Path path) {
+        try {
+            // remove the socket file of a previous run
+            Files.deleteIfExists(path);
+
+            // create and bind socket
+            unixSocket = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            unixSocket.bind(UnixDomainSocketAddress.of(path));
+            unixSocketPath = path;
+
+            logger.ok("Connected server on unix socket {0}", path);
+        } catch (Exception e) {
+            unixSocket = null;
+            logger.err("Failed to connect server on unix socket {0}", path);
+            e.printStackTrace(Logging.ERR);
+        }
+
+        return this;
+    }
+
     public Server start() {
         // start socket worker
         serverSocketWorker
                 .withTarget(this::runMain)
                 .start();
 
+        // start the workers of the other acceptors
+        for (int i = 0; i < acceptorSockets.size(); i++) {
+            ServerSocketChannel acceptorSocket = acceptorSockets.get(i);
+            SafeWorker worker = new SafeWorker("ServerSocketWorker-" + (i + 1))
+                    .withActivityPredicate(safeWorker -> active.get())
+                    .withTarget(() -> runAcceptor("Socket", acceptorSocket));
+            acceptorWorkers.add(worker);
+            worker.start();
+        }
+
+        // start unix domain socket worker
+        if (unixSocket != null) {
+            unixSocketWorker
+                    .withTarget(() -> runAcceptor("UnixSocket", unixSocket))
+                    .start();
+        }
+
         // return
         return this;
     }
@@ -208,7 +607,7 @@ public class Server {
         // while running
         while (active.get()) {
             // check if the socket is still open
-            if (socket.isClosed()) {
+            if (!socket.isOpen()) {
                 // report and close server
                 logger.info("Socket closed, shutting down");
                 shutdownProcess();
@@ -216,27 +615,7 @@ public class Server {
 
             try {
                 // accept connection (blocking)
-                Socket clientSocket = socket.accept();
-
-                try {
-                    // construct client
-                    final ServerClient client = new ServerClient(this, clientSocket);
-                    // register client
-                    clients.add(client);
-                    // start client worker
-                    client.start();
-
-                    // run additional tasks asynchronously
-                    CompletableFuture.runAsync(() -> {
-                        // ready encryption
-                        client.readyTopLevelEncryption();
-                    });
-
-                    ServerClient.LOGGER.info("Accepted and started {0}", client);
-                } catch (Exception e) {
-                    logger.err("Error while accepting connection from [{0}]",
-                            ServerClient.toStringAddress(clientSocket));
-                }
+                accept(socket.accept());
             } catch (Exception e) {
                 logger.err("Error while accepting connections");
                 e.printStackTrace(Logging.ERR);
@@ -248,9 +627,119 @@ public class Server {
         shutdownProcess();
     }
 
+    /**
+     * Accepts connections on another socket
+     * until the server or the socket closes.
+     * @param stage The logger stage.
+     * @param channel The socket.
+     */
+    private void runAcceptor(String stage, ServerSocketChannel channel) {
+        // thread local stage
+        logger.stage(stage);
+
+        while (active.get() && channel.isOpen()) {
+            try {
+                // accept connection (blocking)
+                accept(channel.accept());
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (Exception e) {
+                logger.err("Error while accepting connections");
+                e.printStackTrace(Logging.ERR);
+            }
+        }
+    }
+
+    // hands an accepted connection to the handshake executor,
+    // which starts it once admitted or turns it away
+    private void accept(SocketChannel clientChannel) throws IOException {
+        final ServerClient client;
+        try {
+            // construct client
+            client = new ServerClient(this, clientChannel);
+        } catch (Exception e) {
+            logger.err("Error while accepting connection from [{0}]",
+                    ServerClient.toStringAddress(clientChannel.getRemoteAddress()));
+            clientChannel.close();
+            return;
+        }
+
+        try {
+            handshakes.submit(() -> startHandshake(client), () -> {
+                if (!active.get()) {
+                    client.reject(DisconnectReason.CLOSE);
+                    return;
+                }
+
+                ServerClient.LOGGER.err("Server overloaded, turning away {0}", client);
+                client.reject(DisconnectReason.OVERLOADED);
+            });
+        } catch (Exception e) {
+            logger.err("Error while admitting {0}", client);
+            e.printStackTrace(Logging.ERR);
+            clientChannel.close();
+        }
+    }
+
+    // creates the handshake executor, with the timer
+    // to expire waiting connections if they time out
+    private HandshakeExecutor newHandshakeExecutor(int threads, int maxConcurrent,
+                                                   int maxQueued, long queueTimeoutMillis) {
+        if (networkManager.timer() == null && (queueTimeoutMillis > 0 || handshakeTimeoutMillis > 0))
+            networkManager.timer(new HashedWheelTimer("NHTimer").start());
+        return new HandshakeExecutor(
+                networkManager.threadMode().newExecutor("NHHandshake", threads),
+                maxConcurrent, maxQueued, queueTimeoutMillis
+        ).withTimer(networkManager.timer());
+    }
+
+    // registers and starts a client admitted to the handshake
+    private void startHandshake(ServerClient client) {
+        client.holdHandshake();
+        try {
+            // register client
+            clients.register(client);
+            // ready encryption before reading, so
+            // the handshake handlers are in place
+            // for a client resuming its session
+            client.readyTopLevelEncryption();
+            // start client worker
+            client.start();
+
+            ServerClient.LOGGER.info("Accepted and started {0}", client);
+        } catch (Exception e) {
+            logger.err("Error while starting {0}", client);
+            e.printStackTrace(Logging.ERR);
+            client.releaseHandshake();
+            client.destroy();
+        }
+    }
+
+    /**
+     * Connects a client running in the same process,
+     * like a bot or a gateway, without a socket.
+     * The client end has to be started by the caller
+     * and does the handshake like any other client.
+     * @param peer The handler of the client end.
+     * @return The server client.
+     */
+    public ServerClient connectLocal(LoopbackNetworkHandler peer) {
+        // construct and register client
+        final ServerClient client = new ServerClient(this, peer);
+        clients.register(client);
+        client.readyTopLevelEncryption();
+        client.start();
+
+        ServerClient.LOGGER.info("Connected and started {0}", client);
+        return client;
+    }
+
     public void shutdown() {
         // terminate workers
         serverSocketWorker.terminate();
+        unixSocketWorker.terminate();
+        for (SafeWorker worker : acceptorWorkers)
+            worker.terminate();
 
         // set inactive
         active.set(false);
@@ -265,13 +754,41 @@ public class Server {
 
         // disconnect all clients
         logger.info("Disconnecting clients");
-        for (ServerClient client : clients) {
+        for (ServerClient client : clients.snapshot()) {
             client.disconnect(DisconnectReason.CLOSE);
             client.stop();
         }
 
+        // stop admitting handshakes, turning away the
+        // waiting connections while the loops still run
+        if (handshakes != null) {
+            handshakes.shutdown();
+        }
+
+        // stop event loops
+        if (eventLoopGroup != null) {
+            logger.info("Stopping network event loops");
+            eventLoopGroup.shutdown();
+        }
+
+        // stop idle timeouts
+        if (networkManager.timer() != null) {
+            networkManager.timer().stop();
+        }
+
+        // stop packet dispatch
+        if (networkManager.dispatchExecutor() != null) {
+            logger.info("Stopping packet dispatch");
+            networkManager.dispatchExecutor().shutdown();
+        }
+
+        // stop sending broadcasts
+        if (broadcastExecutor != null) {
+            broadcastExecutor.shutdown();
+        }
+
         // close server socket
-        if (!socket.isClosed()) {
+        if (socket.isOpen()) {
             try {
                 logger.info("Closing server socket");
                 socket.close();
@@ -280,10 +797,128 @@ public class Server {
             }
         }
 
+        // close the sockets of the other acceptors
+        for (ServerSocketChannel acceptorSocket : acceptorSockets) {
+            try {
+                acceptorSocket.close();
+            } catch (Exception e) {
+                e.printStackTrace(Logging.ERR);
+            }
+        }
+
+        // close unix domain socket
+        if (unixSocket != null && unixSocket.isOpen()) {
+            try {
+                logger.info("Closing unix socket");
+                unixSocket.close();
+                Files.deleteIfExists(unixSocketPath);
+            } catch (Exception e) {
+                e.printStackTrace(Logging.ERR);
+            }
+        }
+
         // close logger group
         Logging.getGroup().setActive(false);
     }
 
+    /* ------ Broadcasting ------ */
+
+    /**
+     * Sends a packet to all encrypted clients matching the
+     * predicate, clients still in the handshake are skipped.
+     * The packet is serialized once and only encrypted
+     * for every client, large audiences are split over
+     * the broadcast threads.
+     * @param packet The packet.
+     * @param predicate The predicate or null for all encrypted clients.
+     * @return A future completed with the amount of
+     *         clients it was queued for, once done.
+     */
+    public CompletableFuture<Integer> broadcast(Packet packet, Predicate<ServerClient> predicate) {
+        return broadcast(packet, clients.snapshot(), predicate);
+    }
+
+    /**
+     * Sends a packet to the connected clients
+     * of the members of the channel.
+     * @param channel The channel.
+     * @param packet The packet.
+     * @return A future completed with the amount of
+     *         clients it was queued for, once done.
+     */
+    public CompletableFuture<Integer> broadcast(ServerMessageChannel channel, Packet packet) {
+        List<ServerClient> audience = new ArrayList<>();
+        for (UUID userId : channel.members()) {
+            ServerClient client = clients.byUser(userId);
+            if (client != null)
+                audience.add(client);
+        }
+
+        return broadcast(packet, audience.toArray(new ServerClient[0]), null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Integer> broadcast(Packet packet,
+                                                 ServerClient[] audience,
+                                                 Predicate<ServerClient> predicate) {
+        // serialize once
+        SerializedPacket serialized;
+        try {
+            serialized = SerializedPacket.of(packet, networkManager.bufferPool());
+        } catch (Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
+
+        // send on this thread to small audiences
+        Executor executor = broadcastExecutor;
+        if (executor == null || audience.length < PARALLEL_BROADCAST_SIZE) {
+            try {
+                return CompletableFuture.completedFuture(sendAll(serialized, audience, 0, audience.length, predicate));
+            } finally {
+                serialized.release();
+            }
+        }
+
+        // split the audience over the threads
+        int parts = Math.min(Runtime.getRuntime().availableProcessors(),
+                audience.length / (PARALLEL_BROADCAST_SIZE / 2));
+        int partSize = (audience.length + parts - 1) / parts;
+        CompletableFuture<Integer>[] futures = new CompletableFuture[parts];
+        for (int i = 0; i < parts; i++) {
+            final int from = i * partSize;
+            final int to   = Math.min(audience.length, from + partSize);
+            futures[i] = CompletableFuture.supplyAsync(() -> sendAll(serialized, audience, from, to, predicate), executor);
+        }
+
+        return CompletableFuture.allOf(futures)
+                .whenComplete((v, t) -> serialized.release())
+                .thenApply(v -> {
+                    int count = 0;
+                    for (CompletableFuture<Integer> future : futures)
+                        count += future.join();
+                    return count;
+                });
+    }
+
+    // sends the serialized packet to the encrypted clients
+    // in a range, returning how many it was queued for
+    private static int sendAll(SerializedPacket packet,
+                               ServerClient[] audience, int from, int to,
+                               Predicate<ServerClient> predicate) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            ServerClient client = audience[i];
+            if (!client.isEncrypted())
+                continue;
+            if (predicate != null && !predicate.test(client))
+                continue;
+            if (client.networkHandler.sendSerialized(packet))
+                count++;
+        }
+
+        return count;
+    }
+
     /* ------ Top-Level Services ------ */
 
     /**
@@ -2,32 +2,42 @@ package net.orbyfied.hscsms.server;
 
 import net.orbyfied.hscsms.common.ProtocolSpec;
 import net.orbyfied.hscsms.common.protocol.PacketClientboundDisconnect;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundPacketIds;
 import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundPublicKey;
-import net.orbyfied.hscsms.common.protocol.PacketServerboundDisconnect;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundSessionResumed;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundSessionTicket;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketClientboundSetCompression;
+import net.orbyfied.hscsms.common.protocol.PacketUnboundHeartbeat;
 import net.orbyfied.hscsms.common.protocol.handshake.PacketServerboundClientKey;
+import net.orbyfied.hscsms.common.protocol.handshake.PacketServerboundResumeSession;
 import net.orbyfied.hscsms.common.protocol.handshake.PacketUnboundHandshakeOk;
 import net.orbyfied.hscsms.common.protocol.login.PacketServerboundCreateUser;
 import net.orbyfied.hscsms.core.resource.ServerResourceHandle;
-import net.orbyfied.hscsms.network.handler.ChainAction;
-import net.orbyfied.hscsms.network.handler.HandlerNode;
-import net.orbyfied.hscsms.network.handler.NodeAction;
-import net.orbyfied.hscsms.network.handler.SocketNetworkHandler;
+import net.orbyfied.hscsms.network.PacketIdMapping;
+import net.orbyfied.hscsms.network.handler.*;
 import net.orbyfied.hscsms.common.protocol.DisconnectReason;
+import net.orbyfied.hscsms.security.SessionTickets;
 import net.orbyfied.hscsms.security.SymmetricEncryptionProfile;
 import net.orbyfied.hscsms.server.resource.User;
 import net.orbyfied.hscsms.service.Logging;
 import net.orbyfied.hscsms.util.Values;
+import net.orbyfied.hscsms.util.worker.HashedWheelTimer;
 import net.orbyfied.j8.util.logging.Logger;
 import net.orbyfied.j8.util.logging.formatting.TextFormat;
 
+import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ServerClient {
 
@@ -35,6 +45,13 @@ public class ServerClient {
         return socket.getInetAddress() + ":" + socket.getPort();
     }
 
+    public static String toStringAddress(SocketAddress address) {
+        // clients on unix domain sockets are unnamed
+        if (address instanceof UnixDomainSocketAddress unixAddress)
+            return "unix:" + unixAddress.getPath();
+        return String.valueOf(address);
+    }
+
     static final Logger LOGGER = Logging.getLogger("ServerClient");
 
     /////////////////////////////////////////
@@ -42,8 +59,11 @@ public class ServerClient {
     // the server
     final Server server;
 
+    // the connection id, assigned when registered
+    long id = -1;
+
     // the network handler
-    SocketNetworkHandler networkHandler;
+    ConnectionNetworkHandler<?> networkHandler;
     // the client encryption profile
     SymmetricEncryptionProfile clientEncryptionProfile =
             ProtocolSpec.newSymmetricEncryptionProfile();
@@ -51,23 +71,99 @@ public class ServerClient {
     // the user this client has authenticated as
     // this is null at first
     User user;
+    // the UUID of the user it is indexed by, read
+    // by the io threads to shard its packets
+    volatile UUID userId;
 
     // last disconnect reason
     private DisconnectReason lastDisconnectReason;
 
-    public ServerClient(Server server, Socket socket) {
+    // the connection state, its shared table handles
+    // the packets, null until the handshake starts
+    volatile ClientState state;
+    // what the client did in the handshake so far
+    // and after, only accessed while handling packets
+    boolean resumeAttempted;
+    boolean keyReceived;
+    boolean userCreateAttempted;
+
+    // if the client holds a slot of the handshake
+    // executor, until it is encrypted or disconnected
+    final AtomicBoolean handshaking = new AtomicBoolean(false);
+    // disconnects the client if the handshake takes too long
+    volatile HashedWheelTimer.Timeout handshakeTimeout;
+
+    public ServerClient(Server server, SocketChannel channel) {
+        this.server = server;
+        if (server.eventLoopGroup != null) {
+            // use event loop transport
+            networkHandler = configure(new NioNetworkHandler(
+                    server.networkManager(),
+                    server.utilityNetworkHandler()
+            )).connect(server.eventLoopGroup, channel);
+        } else {
+            // use blocking socket transport, through the
+            // channel as unix domain sockets have no socket
+            networkHandler = configure(new SocketNetworkHandler(
+                    server.networkManager(),
+                    server.utilityNetworkHandler()
+            )).connect(channel);
+        }
+    }
+
+    public ServerClient(Server server, LoopbackNetworkHandler peer) {
         this.server = server;
-        networkHandler = new SocketNetworkHandler(
+        // use in-process transport
+        networkHandler = configure(new LoopbackNetworkHandler(
                 server.networkManager(),
                 server.utilityNetworkHandler()
-        )
+        )).connect(peer);
+    }
+
+    // applies the connection settings of the server
+    private <H extends ConnectionNetworkHandler<H>> H configure(H handler) {
+        return handler
                 .owned(this)
                 .withDisconnectHandler(this::onDisconnect)
-                .connect(socket);
+                .withFlushPolicy(server.flushPolicy())
+                .withOutboundPolicy(server.outboundPolicy())
+                .withSlowConsumerHandler(h -> onSlowConsumer())
+                .withIdlePolicy(server.idlePolicy())
+                .withHeartbeat(() -> new PacketUnboundHeartbeat(System.currentTimeMillis()))
+                .withIdleHandler(h -> onTimeout())
+                .withRateLimiter(server.rateLimiter())
+                .withRateLimitHandler(h -> onRateLimited())
+                .withEncryptionRequired(true)
+                .withBarrierExecutor(server.handshakes().executor());
+    }
+
+    // called before the connection is aborted
+    // because the client does not read fast enough
+    private void onSlowConsumer() {
+        this.lastDisconnectReason = DisconnectReason.SLOW_CONSUMER;
+        server.slowConsumers.increment();
+        LOGGER.err("{0} is not reading fast enough, disconnecting", this);
+    }
+
+    // called before the connection is aborted
+    // because nothing was received for too long
+    private void onTimeout() {
+        this.lastDisconnectReason = DisconnectReason.TIMEOUT;
+        server.timeouts.increment();
+        LOGGER.err("{0} timed out, disconnecting", this);
+    }
+
+    // called before the connection is aborted
+    // because the client exceeded a rate limit
+    private void onRateLimited() {
+        this.lastDisconnectReason = DisconnectReason.RATE_LIMITED;
+        LOGGER.err("{0} exceeded a rate limit, disconnecting", this);
     }
 
     // disconnect handler
     private void onDisconnect(Throwable t) {
+        releaseHandshake();
+
         // check error
         if (t == null) {
             if (lastDisconnectReason != DisconnectReason.CLOSE) {
@@ -99,8 +195,8 @@ public class ServerClient {
      * server.
      */
     public void disconnect(DisconnectReason reason) {
-        // close socket
-        if (!networkHandler.getSocket().isClosed()) {
+        // close connection
+        if (networkHandler.isOpen()) {
             try {
                 try {
                     // send disconnect packet
@@ -117,13 +213,59 @@ public class ServerClient {
                 this.lastDisconnectReason = reason;
 
                 // disconnect socket
-                networkHandler.getSocket().close();
+                networkHandler.close();
             } catch (Exception e) {
                 LOGGER.err("Error while disconnecting {0}", this);
             }
         }
     }
 
+    /**
+     * Turns the connection away before the handshake
+     * was started, like when the server is overloaded.
+     * @param reason The disconnect reason.
+     */
+    public void reject(DisconnectReason reason) {
+        // start to write the reason and close
+        networkHandler.start();
+        disconnect(reason);
+    }
+
+    // called when the client is admitted to the handshake,
+    // which it has to finish before the deadline whatever
+    // else it sends, like heartbeats, to free the slot
+    void holdHandshake() {
+        handshaking.set(true);
+
+        HashedWheelTimer timer = server.networkManager().timer();
+        long timeoutMillis = server.handshakeTimeoutMillis();
+        if (timer != null && timeoutMillis > 0)
+            handshakeTimeout = timer.schedule(this::onHandshakeTimeout, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // frees the slot of the handshake executor once
+    void releaseHandshake() {
+        if (!handshaking.compareAndSet(true, false))
+            return;
+
+        HashedWheelTimer.Timeout timeout = handshakeTimeout;
+        if (timeout != null)
+            timeout.cancel();
+        server.handshakes().release();
+    }
+
+    // called on the timer if the handshake is not done
+    // by the deadline, aborting does not block on writing
+    private void onHandshakeTimeout() {
+        if (isEncrypted() || !handshaking.get())
+            return;
+
+        this.lastDisconnectReason = DisconnectReason.TIMEOUT;
+        server.timeouts.increment();
+        LOGGER.err("{0} did not finish the handshake in time, disconnecting", this);
+        networkHandler.abort(new IOException("handshake not finished after " + server.handshakeTimeoutMillis() + "ms"));
+    }
+
     public ServerClient stop() {
         // stop network handler
         networkHandler.stop();
@@ -136,63 +278,52 @@ public class ServerClient {
         // start network handler
         networkHandler.start();
 
-        // add disconnect handler
-        networkHandler.node()
-                .childForType(PacketServerboundDisconnect.TYPE)
-                .withHandler((handler, node, packet) -> {
-                    networkHandler.disconnect();
-                    return new HandlerNode.Result(ChainAction.HALT);
-                });
-
         // return
         return this;
     }
 
-    public ServerClient readyTopLevelEncryption() {
-        // ok message
-        AtomicReference<String> okMessage = new AtomicReference<>();
+    public ClientState state() {
+        return state;
+    }
 
-        // initialize decryption before client encryption
-        networkHandler.withEncryptionProfile(server.topLevelEncryption);
+    /**
+     * Check if the handshake is done, so the
+     * connection is encrypted and verified.
+     * @return If it is encrypted.
+     */
+    public boolean isEncrypted() {
+        ClientState state = this.state;
+        return state != null && state != ClientState.HANDSHAKE;
+    }
 
-        // add handshake handler to client
-        networkHandler.node().childForType(PacketServerboundClientKey.TYPE)
-                .<PacketServerboundClientKey>withHandler((handler, node, packet) -> {
-                    // store key
-                    clientEncryptionProfile.withKey("secret", packet.getKey());
-                    networkHandler
-                            .withEncryptionProfile(clientEncryptionProfile)
-                            .autoEncrypt(true);
-
-                    // generate message and send ok packet
-                    Random random = new Random();
-                    byte[] bytes = new byte[16];
-                    for (int i = 0; i < bytes.length; i++)
-                        bytes[i] = (byte)(random.nextInt(120) + 30);
-                    okMessage.set(Base64.getEncoder().encodeToString(bytes));
-
-                    networkHandler.sendSync(new PacketUnboundHandshakeOk(okMessage.get()));
-
-                    return new HandlerNode.Result(ChainAction.CONTINUE)
-                            .nodeAction(NodeAction.REMOVE);
-                });
-
-        // listen to verification
-        networkHandler.node().childForType(PacketUnboundHandshakeOk.TYPE)
-                .<PacketUnboundHandshakeOk>withHandler((handler, node, packet) -> {
-                    if (!(okMessage.get() + "-modified").equals(packet.message)) {
-                        LOGGER.err("AES encrypted handshake verification failed for {0}", this);
-                        disconnect(DisconnectReason.KICK);
-                    } else {
-                        LOGGER.ok("Verified AES encrypted handshake for {0}", this);
-                    }
+    // switches to the shared dispatch table of the state
+    void setState(ClientState state) {
+        this.state = state;
+        networkHandler
+                .withProtocolNode(state.node())
+                .withBarrierTypes(state.barrierTypes());
+    }
 
-                    // finish encryption
-                    onEncryptionReady();
+    public ServerClient readyTopLevelEncryption() {
+        // initialize decryption before client encryption
+        networkHandler.withEncryptionProfile(server.topLevelEncryption);
 
-                    return new HandlerNode.Result(ChainAction.CONTINUE)
-                            .nodeAction(NodeAction.REMOVE);
-                });
+        // handle the client key or session ticket
+        setState(ClientState.HANDSHAKE);
+
+        // send the packet id table, the client
+        // sends compact ids from then on
+        PacketIdMapping packetIds = server.networkManager().packetIdMapping();
+        networkHandler.withPacketIds(packetIds);
+        networkHandler.sendSync(new PacketClientboundPacketIds(packetIds.hashes()));
+
+        // agree on compression, the client can
+        // decompress frames from now on
+        int compressionThreshold = server.compressionThreshold();
+        if (compressionThreshold >= 0) {
+            networkHandler.sendSync(new PacketClientboundSetCompression(compressionThreshold));
+            networkHandler.withCompressionThreshold(compressionThreshold);
+        }
 
         // send public key
         networkHandler.sendSync(new PacketClientboundPublicKey(server.topLevelEncryption.getPublicKey()));
@@ -201,31 +332,147 @@ public class ServerClient {
         return this;
     }
 
+    // called when the client tries to resume its session,
+    // unless it already sent a key or tried before
+    void onResumeSession(PacketServerboundResumeSession packet) {
+        if (keyReceived || resumeAttempted)
+            return;
+        resumeAttempted = true;
+        resumeSession(packet);
+    }
+
+    // called when the client sent its key
+    void onClientKey(PacketServerboundClientKey packet) {
+        if (keyReceived)
+            return;
+        keyReceived = true;
+
+        // store key
+        clientEncryptionProfile.withKey("secret", packet.getKey());
+        networkHandler
+                .withEncryptionProfile(clientEncryptionProfile)
+                .autoEncrypt(true);
+
+        // the client has the id table by now
+        networkHandler.compactPacketIds(true);
+
+        // generate message and request verification
+        Random random = new Random();
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte)(random.nextInt(120) + 30);
+        String okMessage = Base64.getEncoder().encodeToString(bytes);
+
+        networkHandler.<PacketUnboundHandshakeOk>sendRequest(new PacketUnboundHandshakeOk(okMessage))
+                .whenComplete((response, t) -> verifyHandshake(okMessage, response, t));
+    }
+
+    // checks the response to the handshake verification
+    private void verifyHandshake(String okMessage, PacketUnboundHandshakeOk response, Throwable t) {
+        if (t != null) {
+            LOGGER.err("AES encrypted handshake verification failed for {0}: {1}", this, t);
+            disconnect(DisconnectReason.KICK);
+            return;
+        }
+
+        if (!(okMessage + "-modified").equals(response.message)) {
+            LOGGER.err("AES encrypted handshake verification failed for {0}", this);
+            disconnect(DisconnectReason.KICK);
+        } else {
+            LOGGER.ok("Verified AES encrypted handshake for {0}", this);
+            issueSessionTicket();
+        }
+
+        // finish encryption
+        onEncryptionReady();
+    }
+
+    // resumes the session of the ticket if it is valid,
+    // deriving the new key from the nonces, otherwise
+    // tells the client to do the full handshake
+    private boolean resumeSession(PacketServerboundResumeSession packet) {
+        SessionTickets tickets = server.sessionTickets();
+        byte[] secret = tickets != null ? tickets.open(packet.getTicket()) : null;
+        byte[] clientNonce = packet.getNonce();
+        if (secret == null || clientNonce == null || clientNonce.length != SessionTickets.NONCE_LENGTH) {
+            LOGGER.info("Rejected session ticket of {0}", this);
+            networkHandler.sendSync(new PacketClientboundSessionResumed(false, new byte[0]));
+            return false;
+        }
+
+        try {
+            byte[] serverNonce = tickets.randomBytes(SessionTickets.NONCE_LENGTH);
+            clientEncryptionProfile.withKey("secret", SessionTickets.deriveKey(secret, clientNonce, serverNonce));
+
+            // answer in plain, then switch to the new key
+            networkHandler.sendSync(new PacketClientboundSessionResumed(true, serverNonce));
+            networkHandler
+                    .withEncryptionProfile(clientEncryptionProfile)
+                    .autoEncrypt(true)
+                    .compactPacketIds(true);
+        } catch (Exception e) {
+            LOGGER.err("Failed to resume session of {0}", this);
+            e.printStackTrace(Logging.ERR);
+            disconnect(DisconnectReason.KICK);
+            return false;
+        }
+
+        server.resumedSessions.increment();
+        LOGGER.ok("Resumed session of {0}", this);
+
+        // the client could only decrypt with the
+        // right secret, no verification needed
+        issueSessionTicket();
+        onEncryptionReady();
+        return true;
+    }
+
+    // sends a new session ticket, encrypted
+    private void issueSessionTicket() {
+        SessionTickets tickets = server.sessionTickets();
+        if (tickets == null)
+            return;
+
+        try {
+            SessionTickets.Ticket ticket = tickets.issue();
+            networkHandler.sendSync(new PacketClientboundSessionTicket(
+                    ticket.ticket(), ticket.secret(), tickets.lifetimeMillis()));
+        } catch (Exception e) {
+            LOGGER.err("Failed to issue session ticket to {0}", this);
+            e.printStackTrace(Logging.ERR);
+        }
+    }
+
     // called when a secure, encrypted
     // connection has been established
     protected void onEncryptionReady() {
+        releaseHandshake();
         onEnterLoginState();
     }
 
     // called when we the client is allowed to
     // login or create a new user
     protected void onEnterLoginState() {
-        // allow user creation
-        networkHandler.node().childForType(PacketServerboundCreateUser.TYPE)
-                .<PacketServerboundCreateUser>withHandler((handler, node, packet) -> {
-                    // create new user
-                    UserCreateResult result = createUser(packet.getUsername(), packet.getPassword());
+        // allow login and user creation
+        setState(ClientState.LOGIN);
+    }
 
-                    // check result
-                    if (result.success) {
-                        //
-                    } else {
+    // called when the client wants to create a user,
+    // which it may do once per connection
+    void onCreateUser(PacketServerboundCreateUser packet) {
+        if (userCreateAttempted)
+            return;
+        userCreateAttempted = true;
 
-                    }
+        // create new user
+        UserCreateResult result = createUser(packet.getUsername(), packet.getPassword());
+
+        // check result
+        if (result.success) {
+            //
+        } else {
 
-                    // return
-                    return new HandlerNode.Result(ChainAction.CONTINUE).nodeAction(NodeAction.REMOVE);
-                });
+        }
     }
 
     /* ---------- User ----------- */
@@ -300,6 +547,8 @@ public class ServerClient {
         // log in client
         this.user = user;
         this.user.login(this);
+        server.clients.bindUser(this, user.universalID());
+        setState(ClientState.AUTHENTICATED);
 
         // return success
         return UserAuthenticationResult.ofSuccess(user);
@@ -307,20 +556,30 @@ public class ServerClient {
 
     protected void logOut() {
         // log out
+        server.clients.unbindUser(this);
         user.logout(this);
         // dispose of user resource
         server.resourceManager().unloadResource(user);
+        setState(ClientState.LOGIN);
     }
 
     /* ---------- Other ------------ */
 
+    public long id() {
+        return id;
+    }
+
+    public User user() {
+        return user;
+    }
+
     @Override
     public String toString() {
         return "ServerClient[" + toStringAddress() + "]";
     }
 
     public String toStringAddress() {
-        return toStringAddress(networkHandler.getSocket());
+        return toStringAddress(networkHandler.getRemoteAddress());
     }
 
 }
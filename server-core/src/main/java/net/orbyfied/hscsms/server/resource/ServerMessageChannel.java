@@ -8,9 +8,12 @@ import net.orbyfied.hscsms.db.DatabaseItem;
 import net.orbyfied.j8.registry.Identifier;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ServerMessageChannel extends ServerResource {
 
@@ -26,8 +29,30 @@ public class ServerMessageChannel extends ServerResource {
 
     /////////////////////////////////////////////////s
 
+    // the UUIDs of the users receiving
+    // messages sent in this channel
+    final Set<UUID> members = ConcurrentHashMap.newKeySet();
+
     public ServerMessageChannel(UUID uuid, UUID localId) {
         super(uuid, TYPE, localId);
     }
 
+    public ServerMessageChannel addMember(UUID userId) {
+        members.add(userId);
+        return this;
+    }
+
+    public ServerMessageChannel removeMember(UUID userId) {
+        members.remove(userId);
+        return this;
+    }
+
+    public boolean isMember(UUID userId) {
+        return members.contains(userId);
+    }
+
+    public Set<UUID> members() {
+        return Collections.unmodifiableSet(members);
+    }
+
 }
@@ -0,0 +1,270 @@
+package net.orbyfied.hscsms.util.worker;
+
+import net.orbyfied.hscsms.service.Logging;
+import net.orbyfied.j8.util.logging.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer for many short, imprecise timeouts, like
+ * the idle timeouts of connections. Timeouts are
+ * hashed into the buckets of a wheel by their deadline,
+ * a single thread advances the wheel every tick and
+ * runs the timeouts of the bucket it reached.
+ * Scheduling and cancelling are O(1) regardless of
+ * the amount of timeouts, expiry is accurate to a tick.
+ * Tasks run on the timer thread, so they should be
+ * short and hand anything blocking off to another thread.
+ */
+public class HashedWheelTimer {
+
+    private static final Logger LOGGER = Logging.getLogger("HashedWheelTimer");
+
+    // the maximum amount of new timeouts put into
+    // the wheel per tick, so the tick stays short
+    static final int MAX_TRANSFER = 100_000;
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+
+        static final int PENDING   = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED   = 2;
+
+        static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        final HashedWheelTimer timer;
+        final Runnable task;
+        // the deadline relative to the start of the timer
+        final long deadline;
+
+        volatile int state = PENDING;
+
+        // the wheel revolutions left until it expires
+        // and the links in its bucket, only accessed
+        // by the timer thread
+        long remainingRounds;
+        Bucket bucket;
+        Timeout prev;
+        Timeout next;
+
+        Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer    = timer;
+            this.task     = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout if it did not expire yet.
+         * @return If it was cancelled by this call.
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+                return false;
+            // removed from its bucket on the next tick
+            timer.cancelled.offer(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED))
+                return;
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOGGER.err(timer.name + ": Error while running timeout");
+                t.printStackTrace(Logging.ERR);
+            }
+        }
+
+    }
+
+    // a doubly linked list of timeouts
+    static final class Bucket {
+
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null)
+                timeout.prev.next = next;
+            if (next != null)
+                next.prev = timeout.prev;
+            if (timeout == head)
+                head = next;
+            if (timeout == tail)
+                tail = timeout.prev;
+
+            timeout.prev   = null;
+            timeout.next   = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        // expires the timeouts due in this revolution
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0) {
+                    Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+
+    }
+
+    ////////////////////////////////
+
+    // the name of the timer thread
+    final String name;
+
+    // the duration of a tick
+    final long tickNanos;
+    // the buckets, a power of two in size
+    final Bucket[] wheel;
+    final int mask;
+
+    // the timeouts to add to and remove from the wheel
+    final MpscQueue<Timeout> pending   = new MpscQueue<>();
+    final MpscQueue<Timeout> cancelled = new MpscQueue<>();
+
+    // the time the timer started at
+    final long startTime = System.nanoTime();
+    // the amount of ticks passed, only
+    // accessed by the timer thread
+    long tick;
+
+    volatile boolean running;
+    Thread thread;
+
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("tick duration must be positive");
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30)
+            throw new IllegalArgumentException("ticks per wheel must be between 1 and 2^30");
+
+        this.name      = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+
+        // round the wheel up to a power of two
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel)
+            size <<= 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        mask = size - 1;
+    }
+
+    public HashedWheelTimer(String name) {
+        this(name, 100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    public synchronized HashedWheelTimer start() {
+        if (thread != null)
+            return this;
+        running = true;
+        thread = Thread.ofPlatform().name(name).daemon().unstarted(this::run);
+        thread.start();
+        return this;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    public long tickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Schedules the task to run once after the delay,
+     * rounded up to the next tick. Can be called by any
+     * thread, including from a task of this timer.
+     * @param task The task.
+     * @param delay The delay.
+     * @param unit The unit of the delay.
+     * @return The timeout.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.offer(timeout);
+        return timeout;
+    }
+
+    // the timer thread
+    private void run() {
+        while (running) {
+            // wait for the end of the tick
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+
+            removeCancelled();
+            transferPending();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    // removes the cancelled timeouts from their buckets
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    // puts the newly scheduled timeouts into their buckets
+    private void transferPending() {
+        Timeout timeout;
+        for (int i = 0; i < MAX_TRANSFER && (timeout = pending.poll()) != null; i++) {
+            if (timeout.isCancelled())
+                continue;
+
+            // the tick it is due at, or the current
+            // one if its deadline already passed
+            long ticks = Math.max((timeout.deadline + tickNanos - 1) / tickNanos - 1, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package net.orbyfied.hscsms.util.worker;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded lock-free queue for many producers and
+ * a single consumer. Producers swap themselves in as
+ * the tail with one atomic operation and link the
+ * previous tail after, the consumer follows the links
+ * from the head without any atomic operations.
+ * Only one thread may poll at a time.
+ * @param <T> The element type.
+ */
+public class MpscQueue<T> {
+
+    static final class Node<T> {
+
+        // the element, null for the stub
+        T value;
+        // the next node, set by the producer
+        // which appended it
+        volatile Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+
+    }
+
+    @SuppressWarnings("rawtypes")
+    static final AtomicReferenceFieldUpdater<MpscQueue, Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(MpscQueue.class, Node.class, "tail");
+
+    // the last node, swapped by producers
+    volatile Node<T> tail;
+    // the node before the first element,
+    // only accessed by the consumer
+    Node<T> head;
+
+    public MpscQueue() {
+        Node<T> stub = new Node<>(null);
+        head = stub;
+        tail = stub;
+    }
+
+    /**
+     * Adds an element at the end of the queue.
+     * Can be called by any thread.
+     * @param value The element.
+     */
+    @SuppressWarnings("unchecked")
+    public void offer(T value) {
+        if (value == null)
+            throw new NullPointerException("value");
+        Node<T> node = new Node<>(value);
+        Node<T> prev = TAIL.getAndSet(this, node);
+        prev.next = node;
+    }
+
+    /**
+     * Takes the first element of the queue.
+     * May only be called by the consumer.
+     * @return The element or null if empty.
+     */
+    public T poll() {
+        Node<T> next = head.next;
+        if (next == null) {
+            if (head == tail)
+                return null;
+
+            // a producer swapped the tail but
+            // did not link its node yet
+            while ((next = head.next) == null)
+                Thread.onSpinWait();
+        }
+
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Check if the queue is empty. Elements
+     * being appended count as present.
+     * May only be called by the consumer.
+     * @return If it is empty.
+     */
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+}
@@ -0,0 +1,138 @@
+package net.orbyfied.hscsms.util.worker;
+
+import net.orbyfied.hscsms.service.Logging;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor which runs its tasks one at a time in
+ * submission order on a shared executor, so many
+ * serial executors can share a few threads.
+ * Keeps count of the pending tasks, so the producer
+ * can pause once it is saturated and resume when
+ * the resume handler is called.
+ */
+public class SerialExecutor implements Executor {
+
+    // the maximum amount of tasks run in one
+    // go, before yielding the shared thread
+    static final int MAX_BATCH = 64;
+
+    // the shared executor
+    final Executor executor;
+
+    // the pending tasks
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    final AtomicInteger pending = new AtomicInteger(0);
+    // if a drain is scheduled or running
+    final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // the amount of pending tasks to pause at and resume at
+    final int maxPending;
+    final int resumePending;
+
+    // called when the pending task count drops
+    // to the resume mark, on the draining thread
+    Runnable resumeHandler;
+    // called after each batch of tasks, on the draining thread
+    Runnable batchHandler;
+
+    // the thread currently draining
+    volatile Thread runner;
+
+    public SerialExecutor(Executor executor, int maxPending) {
+        if (maxPending < 2)
+            throw new IllegalArgumentException("max pending must be at least 2");
+        this.executor      = executor;
+        this.maxPending    = maxPending;
+        this.resumePending = maxPending / 2;
+    }
+
+    public SerialExecutor withResumeHandler(Runnable handler) {
+        this.resumeHandler = handler;
+        return this;
+    }
+
+    public SerialExecutor withBatchHandler(Runnable handler) {
+        this.batchHandler = handler;
+        return this;
+    }
+
+    public int pending() {
+        return pending.get();
+    }
+
+    public int maxPending() {
+        return maxPending;
+    }
+
+    public int resumePending() {
+        return resumePending;
+    }
+
+    /**
+     * Check if the producer should pause
+     * until the resume handler is called.
+     * @return If it is saturated.
+     */
+    public boolean isSaturated() {
+        return pending.get() >= maxPending;
+    }
+
+    /**
+     * Check if the current thread is
+     * running tasks of this executor.
+     * @return If it is.
+     */
+    public boolean inExecutor() {
+        return Thread.currentThread() == runner;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        pending.incrementAndGet();
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        runner = Thread.currentThread();
+        try {
+            int count = 0;
+            Runnable task;
+            while (count < MAX_BATCH && (task = tasks.poll()) != null) {
+                count++;
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    t.printStackTrace(Logging.ERR);
+                }
+
+                if (pending.decrementAndGet() == resumePending && resumeHandler != null)
+                    resumeHandler.run();
+            }
+
+            if (batchHandler != null)
+                batchHandler.run();
+        } finally {
+            runner = null;
+            scheduled.set(false);
+        }
+
+        // continue later if tasks were added
+        // or the batch limit was reached
+        if (!tasks.isEmpty())
+            schedule();
+    }
+
+}
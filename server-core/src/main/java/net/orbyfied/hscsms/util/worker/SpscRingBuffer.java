@@ -0,0 +1,99 @@
+package net.orbyfied.hscsms.util.worker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free ring buffer for a single producer
+ * and a single consumer. Each side only writes its own
+ * index, publishing it with a release store, and keeps
+ * a cached copy of the other index so it only reads the
+ * shared one when the cached copy says full or empty.
+ * Several producers may take turns if they are serialized
+ * externally, for example by a lock.
+ * @param <T> The element type.
+ */
+public class SpscRingBuffer<T> {
+
+    // the elements, a power of two in size
+    final Object[] buffer;
+    final int mask;
+
+    // the index of the next element to poll,
+    // only written by the consumer
+    final AtomicLong head = new AtomicLong(0);
+    // the index of the next element to offer,
+    // only written by the producer
+    final AtomicLong tail = new AtomicLong(0);
+
+    // the last head seen by the producer and
+    // the last tail seen by the consumer
+    long cachedHead;
+    long cachedTail;
+
+    public SpscRingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+
+        // round up to a power of two
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        buffer = new Object[size];
+        mask   = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Adds an element if there is space.
+     * May only be called by the producer.
+     * @param value The element.
+     * @return If it was added.
+     */
+    public boolean offer(T value) {
+        if (value == null)
+            throw new NullPointerException("value");
+        long t = tail.get();
+        if (t - cachedHead >= buffer.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= buffer.length)
+                return false;
+        }
+
+        buffer[(int) (t & mask)] = value;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Takes the first element.
+     * May only be called by the consumer.
+     * @return The element or null if empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail)
+                return null;
+        }
+
+        int index = (int) (h & mask);
+        T value = (T) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return value;
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+}